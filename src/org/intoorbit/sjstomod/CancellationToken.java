@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+/**
+ * Lets a caller stop a conversion from another thread, or after a deadline.
+ *
+ * The loading, translating and saving code checks the token at least every
+ * {@link #checkInterval} rows or module bytes, and before every chunk of
+ * sample data or output, records how far it got, and throws
+ * {@link ConversionCancelledException} once the token is cancelled, so a
+ * conversion stops within a bounded amount of work.  A token belongs to one
+ * conversion at a time.
+ *
+ * @author mindless
+ */
+public class CancellationToken
+{
+    /**
+     * A token that is never cancelled and records nothing.
+     */
+    public static final CancellationToken none = new CancellationToken();
+
+    /**
+     * The number of rows, or steps, or bytes between checks.
+     */
+    public static final int checkInterval = 4096;
+
+    private final long deadlineNanos;
+
+    private final boolean hasDeadline;
+
+    private volatile boolean cancelled;
+
+    private volatile String stage = "";
+
+    private volatile long progress;
+
+    /**
+     * Creates a token without a deadline, which is only cancelled by
+     * {@link #cancel}.
+     */
+    public CancellationToken()
+    {
+        deadlineNanos = 0;
+        hasDeadline = false;
+    }
+
+    /**
+     * Creates a token that is cancelled once the given time has passed.
+     */
+    public CancellationToken( long timeoutMillis )
+    {
+        if (timeoutMillis < 0)
+            throw new IllegalArgumentException("timeoutMillis is negative");
+        
+        deadlineNanos = System.nanoTime() + timeoutMillis * 1000000;
+        hasDeadline = true;
+    }
+
+    public void cancel()
+    {
+        if (this == none)
+            throw new UnsupportedOperationException("none can't be cancelled");
+        
+        cancelled = true;
+    }
+
+    /**
+     * @return whether the token was cancelled or its deadline has passed
+     */
+    public boolean isCancelled()
+    {
+        return cancelled || (hasDeadline && System.nanoTime() - deadlineNanos >= 0);
+    }
+
+    /**
+     * @return the stage that the conversion last reported, or "" if it
+     *         reported none
+     */
+    public String getStage()
+    {
+        return stage;
+    }
+
+    /**
+     * @return how far into its last stage the conversion reported being
+     */
+    public long getProgress()
+    {
+        return progress;
+    }
+
+    /**
+     * Records the progress of the conversion and stops it if the token is
+     * cancelled.
+     * 
+     * @param stage what the conversion is doing, named by the unit of
+     *        progress, such as "rows translated"
+     */
+    void check( String stage, long progress ) throws ConversionCancelledException
+    {
+        if (this == none)
+            return;
+        
+        this.stage = stage;
+        this.progress = progress;
+        
+        if (isCancelled())
+            throw new ConversionCancelledException(stage, progress);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a conversion stops because its {@link CancellationToken} was
+ * cancelled or its deadline passed.
+ *
+ * @author mindless
+ */
+public class ConversionCancelledException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String stage;
+
+    private final long progress;
+
+    public ConversionCancelledException( String stage, long progress )
+    {
+        super(String.format("cancelled after %d %s", progress, stage));
+        
+        this.stage = stage;
+        this.progress = progress;
+    }
+
+    /**
+     * @return what the conversion was doing, such as "rows translated"
+     */
+    public String getStage()
+    {
+        return stage;
+    }
+
+    /**
+     * @return how much of the stage was done, in the units it names
+     */
+    public long getProgress()
+    {
+        return progress;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.intoorbit.sjstomod.io.Volume;
+import org.intoorbit.sjstomod.io.Volumes;
+
+/**
+ * Converts SJS modules, with the samples named for them in 'leveldata', to
+ * Protracker modules.
+ *
+ * A converter is configured once and may then be used from any number of
+ * threads.  Each thread keeps its own input and output buffers between
+ * conversions; an input buffer grown past {@link #maxRetainedInputCapacity}
+ * for a large module is dropped once that conversion is done.  Only these
+ * I/O buffers are pooled: the module model, with its notes, rows and
+ * patterns, is allocated anew for each conversion.  Errors in the input are
+ * returned in the result rather than thrown.
+ *
+ * Each way of converting also takes a {@link CancellationToken}, which is
+ * checked while the module and samples are loaded, translated and saved.  A
+ * cancelled conversion returns a {@link ConversionCancelledException} as its
+ * error, saying how far it got, and drops the buffers of the thread, since
+ * a module big enough to be cancelled may have grown them.
+ *
+ * @author mindless
+ */
+public class Converter
+{
+    private static final int initialInputCapacity = 64 * 1024;
+
+    /**
+     * The largest input buffer that a thread keeps between conversions.
+     */
+    public static final int maxRetainedInputCapacity = 256 * 1024;
+
+    private static final int outputCapacity = 64 * 1024;
+
+    // the pattern layout search, buffers and other fixed costs
+    private static final long baseBytes = 1024 * 1024;
+
+    // a note of 3 bytes becomes a Note and a row, then a Protracker note
+    private static final long bytesPerModuleByte = 32;
+
+    // read, copied into the 8SVX, copied to one octave and copied to output
+    private static final long bytesPerSampleByte = 4;
+
+    private final long optimizationMillis;
+
+    private final int headroom;
+
+    private final ParseBudget budget;
+
+    private final boolean pitchMatching;
+
+    private final LayoutMemo layoutMemo;
+
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>()
+    {
+        @Override
+        protected Buffers initialValue()
+        {
+            return new Buffers();
+        }
+    };
+
+    private Converter( Builder builder )
+    {
+        optimizationMillis = builder.optimizationMillis;
+        headroom = builder.headroom;
+        budget = builder.budget;
+        pitchMatching = builder.pitchMatching;
+        layoutMemo = builder.layoutMemo;
+    }
+
+    /**
+     * Converts a module and the samples next to it in a volume.
+     */
+    public Result convert( Volume volume, String moduleEntryName, WritableByteChannel out )
+    {
+        return convert(volume, moduleEntryName, out, CancellationToken.none);
+    }
+
+    public Result convert( Volume volume, String moduleEntryName, WritableByteChannel out, CancellationToken token )
+    {
+        ByteBuffer module;
+        
+        try
+        {
+            module = volume.read(moduleEntryName);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            return new Result(ex, Collections.<String>emptyList(), 0);
+        }
+        
+        return convert(module, moduleEntryName, volume, out, token);
+    }
+
+    /**
+     * Converts a module read from a channel.  The module is read into a
+     * buffer that is reused by later conversions on the same thread.
+     * 
+     * @param sampleVolume the volume holding 'leveldata' and the samples in
+     *        the directory of moduleEntryName, or null to convert without
+     *        samples
+     */
+    public Result convert( ReadableByteChannel in, String moduleEntryName, Volume sampleVolume, WritableByteChannel out )
+    {
+        return convert(in, moduleEntryName, sampleVolume, out, CancellationToken.none);
+    }
+
+    public Result convert( ReadableByteChannel in, String moduleEntryName, Volume sampleVolume, WritableByteChannel out, CancellationToken token )
+    {
+        Buffers threadBuffers = buffers.get();
+        
+        ByteBuffer module = threadBuffers.input;
+        module.clear();
+        
+        try
+        {
+            while (in.read(module) >= 0)
+            {
+                token.check("module bytes read", module.position());
+                
+                if (!module.hasRemaining())
+                {
+                    budget.checkBytes((long)module.capacity() + 1);
+                    
+                    ByteBuffer grown = ByteBuffer.allocate((int)Math.min((long)module.capacity() * 2, budget.getMaxBytes()));
+                    module.flip();
+                    grown.put(module);
+                    
+                    threadBuffers.input = module = grown;
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            if (ex instanceof ConversionCancelledException)
+                buffers.remove();
+            
+            shrinkInput(threadBuffers);
+            
+            return new Result(ex, Collections.<String>emptyList(), 0);
+        }
+        
+        module.flip();
+        
+        Result result = convert(module, moduleEntryName, sampleVolume, out, token);
+        
+        shrinkInput(threadBuffers);
+        
+        return result;
+    }
+
+    private static void shrinkInput( Buffers threadBuffers )
+    {
+        if (threadBuffers.input.capacity() > maxRetainedInputCapacity)
+            threadBuffers.input = ByteBuffer.allocate(initialInputCapacity);
+    }
+
+    /**
+     * Converts the remaining bytes of a module buffer.
+     * 
+     * @param sampleVolume the volume holding 'leveldata' and the samples in
+     *        the directory of moduleEntryName, or null to convert without
+     *        samples
+     */
+    public Result convert( ByteBuffer module, String moduleEntryName, Volume sampleVolume, WritableByteChannel out )
+    {
+        return convert(module, moduleEntryName, sampleVolume, out, CancellationToken.none);
+    }
+
+    public Result convert( ByteBuffer module, String moduleEntryName, Volume sampleVolume, WritableByteChannel out, CancellationToken token )
+    {
+        ArrayList<String> warnings = new ArrayList<>();
+        
+        try
+        {
+            ProtrackerModule ptModule = convert(SoundPlayerModule.load(module, budget, token), moduleEntryName, sampleVolume, warnings, token);
+            
+            long byteCount = ptModule.save(out, buffers.get().output, token);
+            
+            return new Result(null, warnings, byteCount);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            if (ex instanceof ConversionCancelledException)
+                buffers.remove();
+            
+            return new Result(ex, warnings, 0);
+        }
+    }
+
+    /**
+     * Converts a loaded module.
+     * 
+     * @param warnings receives a message for each sample that couldn't be
+     *        loaded
+     */
+    public ProtrackerModule convert( SoundPlayerModule module, String moduleEntryName, Volume sampleVolume, List<String> warnings )
+    {
+        try
+        {
+            return convert(module, moduleEntryName, sampleVolume, warnings, CancellationToken.none);
+        }
+        catch (ConversionCancelledException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Converts a loaded module, stopping if the token is cancelled.
+     * 
+     * @param warnings receives a message for each sample that couldn't be
+     *        loaded
+     */
+    public ProtrackerModule convert( SoundPlayerModule module, String moduleEntryName, Volume sampleVolume, List<String> warnings, CancellationToken token ) throws ConversionCancelledException
+    {
+        String moduleName = Volumes.getFileName(moduleEntryName);
+        
+        int[] sampleTransposes = new int[16];
+        
+        ProtrackerModule.Sample[] ptSamples = loadSamples(moduleEntryName, sampleVolume, sampleTransposes, warnings, token);
+        
+        ProtrackerModule ptModule = module.toProtracker(ptSamples, sampleTransposes, new PatternLayoutOptimizer(optimizationMillis, layoutMemo), token);
+        
+        ptModule = new ProtrackerModule.Builder(ptModule)
+                .setTitle(moduleName)
+                .build()
+                .compactSamples();
+        
+        token.check("samples compacted", 31);
+        
+        if (headroom >= 0)
+            ptModule = ptModule.normalizeSamples(headroom);
+        
+        return ptModule;
+    }
+
+    /**
+     * Loads the samples named for a module in 'leveldata', indexed by the
+     * sample numbers of the module less 1.
+     * 
+     * @param sampleTransposes receives the semitones to transpose the notes
+     *        of each sample by
+     * @param warnings receives a message for each sample that couldn't be
+     *        loaded
+     */
+    ProtrackerModule.Sample[] loadSamples( String moduleEntryName, Volume sampleVolume, int[] sampleTransposes, List<String> warnings )
+    {
+        try
+        {
+            return loadSamples(moduleEntryName, sampleVolume, sampleTransposes, warnings, CancellationToken.none);
+        }
+        catch (ConversionCancelledException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private ProtrackerModule.Sample[] loadSamples( String moduleEntryName, Volume sampleVolume, int[] sampleTransposes, List<String> warnings, CancellationToken token ) throws ConversionCancelledException
+    {
+        ProtrackerModule.Sample[] ptSamples = new ProtrackerModule.Sample[16];
+        
+        if (sampleVolume == null)
+        {
+            warnings.add("cannot determine samples: no volume");
+        }
+        else
+        {
+            try
+            {
+                loadSamples(sampleVolume, Volumes.getDirectory(moduleEntryName), Volumes.getFileName(moduleEntryName), ptSamples, sampleTransposes, warnings, token);
+            }
+            catch (ConversionCancelledException ex)
+            {
+                throw ex;
+            }
+            catch (IOException ex)
+            {
+                warnings.add("cannot load samples: " + ex);
+            }
+        }
+        
+        return ptSamples;
+    }
+
+    private void loadSamples( Volume volume, String moduleDirectory, String moduleName, ProtrackerModule.Sample[] ptSamples, int[] sampleTransposes, List<String> warnings, CancellationToken token ) throws IOException
+    {
+        String levelDataName = moduleDirectory + "leveldata";
+        if (!volume.exists(levelDataName))
+        {
+            warnings.add("cannot determine samples: missing 'leveldata'");
+            return;
+        }
+        
+        String[] sampleNames = SoundPlayerModule.determineSampleNames(volume.read(levelDataName), moduleName);
+        
+        if (sampleNames == null)
+        {
+            warnings.add("cannot determine samples: no entry in 'leveldata'");
+            return;
+        }
+        
+        for (int i = 0; i < sampleNames.length; ++i)
+        {
+            if (sampleNames[i] == null)
+                continue;
+            
+            String sampleName = moduleDirectory + sampleNames[i];
+            if (!volume.exists(sampleName))
+            {
+                warnings.add(String.format("missing sample '%s'", sampleNames[i]));
+                continue;
+            }
+            
+            Iff8svx sample = Iff8svx.loadForm(volume.read(sampleName), budget, token);
+            
+            PitchMatch pitchMatch = pitchMatching ?
+                    PitchMatch.forRate(sample.getSamplesPerSecond()) :
+                    PitchMatch.none;
+            
+            ptSamples[i] = new ProtrackerModule.Sample.Builder(sample.toProtracker())
+                    .setName(sampleNames[i])
+                    .setFineTune(pitchMatch.getFineTune())
+                    .build();
+            
+            sampleTransposes[i] = pitchMatch.getTranspose();
+        }
+    }
+
+    /**
+     * Estimates the most heap a conversion of a module in a volume takes, from
+     * the sizes of the module and of the samples named for it in
+     * 'leveldata', without reading either.  The estimate is generous rather
+     * than exact: every note of the module becomes an object, and a sample
+     * body is copied when it is loaded, trimmed to its octave, normalized and
+     * written out.
+     * 
+     * @return the estimated peak heap use in bytes
+     */
+    public long estimatePeakBytes( Volume volume, String moduleEntryName ) throws IOException
+    {
+        long peakBytes = baseBytes + volume.size(moduleEntryName) * bytesPerModuleByte;
+        
+        for (String sampleEntryName : getSampleEntryNames(volume, moduleEntryName))
+        {
+            long sampleBytes = volume.size(sampleEntryName);
+            
+            peakBytes += sampleBytes * (headroom >= 0 ? bytesPerSampleByte + 1 : bytesPerSampleByte);
+        }
+        
+        return peakBytes;
+    }
+
+    /**
+     * @return the entry names of the files besides the module that a
+     *         conversion of the module reads: 'leveldata' and the samples
+     *         named for the module in it, as far as they exist
+     */
+    public List<String> getInputEntryNames( Volume volume, String moduleEntryName ) throws IOException
+    {
+        ArrayList<String> entryNames = new ArrayList<>();
+        
+        String levelDataName = Volumes.getDirectory(moduleEntryName) + "leveldata";
+        if (volume.exists(levelDataName))
+            entryNames.add(levelDataName);
+        
+        entryNames.addAll(getSampleEntryNames(volume, moduleEntryName));
+        
+        return entryNames;
+    }
+
+    private static List<String> getSampleEntryNames( Volume volume, String moduleEntryName ) throws IOException
+    {
+        String levelDataName = Volumes.getDirectory(moduleEntryName) + "leveldata";
+        if (!volume.exists(levelDataName))
+            return Collections.emptyList();
+        
+        String[] sampleNames = SoundPlayerModule.determineSampleNames(volume.read(levelDataName), Volumes.getFileName(moduleEntryName));
+        
+        if (sampleNames == null)
+            return Collections.emptyList();
+        
+        ArrayList<String> sampleEntryNames = new ArrayList<>();
+        
+        for (String sampleName : sampleNames)
+        {
+            if (sampleName == null || !volume.exists(Volumes.getDirectory(moduleEntryName) + sampleName))
+                continue;
+            
+            sampleEntryNames.add(Volumes.getDirectory(moduleEntryName) + sampleName);
+        }
+        
+        return sampleEntryNames;
+    }
+
+    public static class Builder
+    {
+        private long optimizationMillis = 250;
+
+        private int headroom = -1;
+
+        private ParseBudget budget = ParseBudget.standard;
+
+        private boolean pitchMatching;
+
+        private LayoutMemo layoutMemo;
+
+        /**
+         * @param optimizationMillis the time to spend searching for a better
+         *        pattern layout, or 0 to use the default layout
+         */
+        public Builder setOptimizationMillis( long optimizationMillis )
+        {
+            if (optimizationMillis < 0)
+                throw new IllegalArgumentException("optimizationMillis is negative");
+            
+            this.optimizationMillis = optimizationMillis;
+            return this;
+        }
+
+        /**
+         * @param headroom the headroom to normalize samples to, or -1 to
+         *        leave samples at their original level
+         */
+        public Builder setHeadroom( int headroom )
+        {
+            if (headroom < -1 || headroom > 127)
+                throw new IllegalArgumentException("headroom is out-of-range");
+            
+            this.headroom = headroom;
+            return this;
+        }
+
+        public Builder setParseBudget( ParseBudget budget )
+        {
+            if (budget == null)
+                throw new IllegalArgumentException("budget is null");
+            
+            this.budget = budget;
+            return this;
+        }
+
+        /**
+         * @param pitchMatching whether to correct the pitch of each sample
+         *        for its recorded rate with finetune and transposed notes
+         */
+        public Builder setPitchMatching( boolean pitchMatching )
+        {
+            this.pitchMatching = pitchMatching;
+            return this;
+        }
+
+        /**
+         * @param layoutMemo the memo of pattern layouts to share with other
+         *        converters or runs; by default there is none, since a memo
+         *        keeps a layout for every module it has seen, so every
+         *        conversion searches
+         */
+        public Builder setLayoutMemo( LayoutMemo layoutMemo )
+        {
+            if (layoutMemo == null)
+                throw new IllegalArgumentException("layoutMemo is null");
+            
+            this.layoutMemo = layoutMemo;
+            return this;
+        }
+
+        public Converter build()
+        {
+            return new Converter(this);
+        }
+    }
+
+    /**
+     * The outcome of a conversion: either the number of bytes written, or
+     * the error that stopped it.  Either way, warnings about samples that
+     * couldn't be loaded.
+     */
+    public static class Result
+    {
+        private final Exception error;
+
+        private final List<String> warnings;
+
+        private final long byteCount;
+
+        private Result( Exception error, List<String> warnings, long byteCount )
+        {
+            this.error = error;
+            this.warnings = Collections.unmodifiableList(warnings);
+            this.byteCount = byteCount;
+        }
+
+        public boolean isSuccess()
+        {
+            return error == null;
+        }
+
+        /**
+         * @return the error, or null if the conversion succeeded
+         */
+        public Exception getError()
+        {
+            return error;
+        }
+
+        public List<String> getWarnings()
+        {
+            return warnings;
+        }
+
+        /**
+         * @return the number of bytes written to the output channel
+         */
+        public long getByteCount()
+        {
+            return byteCount;
+        }
+    }
+
+    private static class Buffers
+    {
+        private ByteBuffer input = ByteBuffer.allocate(initialInputCapacity);
+
+        private final ByteBuffer output = ByteBuffer.allocate(outputCapacity);
+    }
+}
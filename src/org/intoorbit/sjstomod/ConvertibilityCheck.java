@@ -0,0 +1,517 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decides whether an SJS module can be converted without loading it or
+ * building any patterns.
+ *
+ * The check makes a single pass over the raw bytes of the module and applies
+ * the same effect, volume, tempo and initial-effect rules as
+ * {@link SoundPlayerModule#toProtracker}.  The state it keeps is fixed in
+ * size: the first 64 rows of each voice, which are all that the collapsed
+ * initial rows and the first Protracker row can refer to, the volumes
+ * each sample is played at, and the samples each voice plays before its
+ * first volume effect.  Failures that depend on the pattern layout, such as a
+ * pattern with no room for its break, aren't detected.
+ *
+ * @author mindless
+ */
+public class ConvertibilityCheck
+{
+    public enum Problem
+    {
+        NONE,
+        MALFORMED,
+        INVALID_NOTE,
+        UNKNOWN_EFFECT,
+        SAMPLE_VOLUME_CHANGE,
+        SMALL_BPM,
+        LARGE_BPM,
+        IRRECONCILABLE_INITIAL_EFFECTS,
+    }
+
+    private static final int noNote = -1;
+
+    private static final int hasSemitone = 0x1000;
+
+    private static final int isRepeat = 0x2000;
+
+    private ConvertibilityCheck()
+    {
+    }
+
+    /**
+     * Checks the given files in parallel.
+     *
+     * @return a verdict for each path, in the same order
+     */
+    public static List<Verdict> check( List<Path> paths, int threadCount ) throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        
+        try
+        {
+            ArrayList<Future<Verdict>> futures = new ArrayList<>();
+            
+            for (final Path path : paths)
+            {
+                futures.add(executor.submit(new Callable<Verdict>()
+                {
+                    @Override
+                    public Verdict call()
+                    {
+                        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+                        {
+                            ParseBudget.standard.checkBytes(channel.size());
+                            
+                            return check(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), ParseBudget.standard);
+                        }
+                        catch (IOException | RuntimeException ex)
+                        {
+                            return new Verdict(Problem.MALFORMED, -1, -1, String.valueOf(ex.getMessage()));
+                        }
+                    }
+                }));
+            }
+            
+            ArrayList<Verdict> verdicts = new ArrayList<>();
+            
+            for (Future<Verdict> future : futures)
+            {
+                try
+                {
+                    verdicts.add(future.get());
+                }
+                catch (ExecutionException ex)
+                {
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+            
+            return verdicts;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints one tab-separated line per file: path, problem, voice, row and
+     * detail, with "-" for a voice or row that doesn't apply.
+     */
+    public static void report( List<Path> paths, List<Verdict> verdicts, PrintStream out )
+    {
+        for (int i = 0; i < paths.size(); ++i)
+            out.printf("%s\t%s\n", paths.get(i), verdicts.get(i));
+    }
+
+    public static Verdict check( ByteBuffer module, ParseBudget budget ) throws ParseBudgetExceededException
+    {
+        module = module.duplicate();
+        
+        budget.checkBytes(module.remaining());
+        
+        if (module.remaining() < 3)
+            return new Verdict(Problem.MALFORMED, -1, -1, "module is truncated");
+        
+        int delay = module.get() & 0xff;
+        delay |= (module.get() & 0xff) << 8;
+        int flags = module.get() & 0xff;
+        
+        if ((flags & 0x0f) == 0 || (flags & ~0x0f) != 0)
+            return new Verdict(Problem.MALFORMED, -1, -1, "module has invalid flags");
+        if (delay == 0)
+            return new Verdict(Problem.MALFORMED, -1, -1, "module has no delay");
+        
+        // the translated effect of the note starting at each of the first 64
+        // rows of each voice, combined with the flags above
+        int[][] initialRows = new int[4][64];
+        for (int[] rows : initialRows)
+            Arrays.fill(rows, noNote);
+        
+        int[] voiceRowCounts = new int[4];
+        int[] voiceVolumes = new int[] { 63, 63, 63, 63 };
+        int[] sampleVolumes = new int[31];
+        Arrays.fill(sampleVolumes, -1);
+        
+        // a sample played at another volume takes one of the slots that no
+        // note uses, in module order, and once there are none left, its
+        // notes need their effect for a Cxx
+        boolean[] usedSlots = new boolean[31];
+        int[][] variants = new int[31][64];
+        for (int[] volumeVariants : variants)
+            Arrays.fill(volumeVariants, -1);
+        int variantCount = 0;
+        int[] variantSamples = new int[31 * 63];
+        int[][] variantConflictRows = new int[4][31 * 63];
+        for (int[] conflictRows : variantConflictRows)
+            Arrays.fill(conflictRows, Integer.MAX_VALUE);
+        int[][] initialVariants = new int[4][64];
+        for (int[] rows : initialVariants)
+            Arrays.fill(rows, -1);
+        
+        // the notes before the first volume effect of a voice are played at
+        // another volume when the voice repeats, which is only known at the
+        // end, so the first step and the first row with an effect of each
+        // sample they play are kept
+        int volumeSetVoices = 0;
+        int[][] prefixSteps = new int[4][31];
+        int[][] prefixConflictRows = new int[4][31];
+        for (int v = 0; v < 4; ++v)
+        {
+            Arrays.fill(prefixSteps[v], -1);
+            Arrays.fill(prefixConflictRows[v], Integer.MAX_VALUE);
+        }
+        int[][] initialPrefixSamples = new int[4][64];
+        
+        // notes are only translated if they end up in a row, which isn't
+        // known until the end
+        Verdict[] noteVerdicts = new Verdict[4];
+        
+        int ended = 0;
+        for (int step = 0; (ended & flags & 0x0f) != (flags & 0x0f); ++step)
+        {
+            if (module.remaining() < 4 * 3)
+                return new Verdict(Problem.MALFORMED, -1, -1, "module is truncated");
+            
+            for (int v = 0; v < 4; ++v)
+            {
+                int semitone = module.get() & 0xff;
+                int sample = module.get() & 0xff;
+                int effect = module.get() & 0xff;
+                
+                if ((ended & (1 << v)) != 0)
+                    continue;
+                
+                int row = voiceRowCounts[v];
+                
+                if (semitone != 0 && sample > 31)
+                    return new Verdict(Problem.INVALID_NOTE, v, row, String.format("sample %d", sample));
+                
+                Verdict verdict = null;
+                int ptEffect = 0;
+                
+                if (semitone != 0 && !isPeriodIndex(SoundPlayerModule.getPeriodIndex(semitone)))
+                    verdict = new Verdict(Problem.INVALID_NOTE, v, row, String.format("semitone %d", semitone));
+                else if (sample > 31)
+                    verdict = new Verdict(Problem.INVALID_NOTE, v, row, String.format("sample %d", sample));
+                else if (!SoundPlayerModule.isEffectTranslatable(effect))
+                    verdict = new Verdict(Problem.UNKNOWN_EFFECT, v, row, String.format("effect %02X", effect));
+                else
+                    ptEffect = SoundPlayerModule.translateEffectToProtracker(semitone, sample, effect);
+                
+                if (verdict != null && noteVerdicts[v] == null)
+                    noteVerdicts[v] = verdict;
+                
+                // same rule as translateVolumeToProtracker
+                if (effect >= 0x03 && effect <= 0x42)
+                {
+                    voiceVolumes[v] = effect - 0x03;
+                    volumeSetVoices |= 1 << v;
+                }
+                
+                if (sample != 0 && sample <= 31)
+                    usedSlots[sample - 1] = true;
+                
+                int variant = -1;
+                
+                if (semitone != 0 && sample != 0)
+                {
+                    int volume = voiceVolumes[v];
+                    
+                    if (sampleVolumes[sample - 1] == -1)
+                    {
+                        sampleVolumes[sample - 1] = volume;
+                    }
+                    else if (sampleVolumes[sample - 1] != volume)
+                    {
+                        if (variants[sample - 1][volume] == -1)
+                        {
+                            variants[sample - 1][volume] = variantCount;
+                            variantSamples[variantCount] = sample;
+                            variantCount += 1;
+                        }
+                        
+                        variant = variants[sample - 1][volume];
+                        
+                        if (ptEffect != 0 && variantConflictRows[v][variant] == Integer.MAX_VALUE)
+                            variantConflictRows[v][variant] = row;
+                    }
+                    
+                    if ((volumeSetVoices & (1 << v)) == 0)
+                    {
+                        if (prefixSteps[v][sample - 1] == -1)
+                            prefixSteps[v][sample - 1] = step;
+                        
+                        if (ptEffect != 0 && prefixConflictRows[v][sample - 1] == Integer.MAX_VALUE)
+                            prefixConflictRows[v][sample - 1] = row;
+                        
+                        if (row < 64)
+                            initialPrefixSamples[v][row] = sample;
+                    }
+                }
+                
+                if (row < 64)
+                {
+                    initialRows[v][row] = ptEffect | (semitone != 0 ? hasSemitone : 0) | (effect == 0xde ? isRepeat : 0);
+                    initialVariants[v][row] = variant;
+                }
+                
+                voiceRowCounts[v] += 1;
+                
+                if (effect >= 0x57 && effect <= 0x88)
+                    voiceRowCounts[v] += effect - 0x57;
+                else if (effect == 0xde)
+                    ended |= 1 << v;
+                
+                budget.checkRows(voiceRowCounts[v]);
+            }
+        }
+        
+        int rowCount = SoundPlayerModule.getCycleRowCount(flags, voiceRowCounts);
+        
+        // a voice that isn't flagged is as long as the module
+        for (int v = 0; v < 4; ++v)
+            if ((flags & (1 << v)) == 0)
+                voiceRowCounts[v] = rowCount;
+        
+        int collapsedRowCount = rowCount % 64;
+        
+        for (int v = 0; v < 4; ++v)
+            for (int r = 0; r < collapsedRowCount; ++r)
+                if ((getUnrolledNote(initialRows[v], voiceRowCounts[v], r) & hasSemitone) != 0)
+                    collapsedRowCount = 0;
+        
+        // with every row collapsed, nothing is translated
+        if (rowCount - collapsedRowCount == 0)
+            return new Verdict(Problem.NONE, -1, -1, "");
+        
+        // same rule as translateVolumeToProtracker: the repeats of a voice
+        // that repeats before the others start at the volume it ended at, and
+        // the slots for them follow those of the first pass, in module order
+        int[] repeatVolumes = new int[4];
+        long[] repeatNotes = new long[4 * 31];
+        int repeatNoteCount = 0;
+        
+        for (int v = 0; v < 4; ++v)
+        {
+            repeatVolumes[v] = voiceRowCounts[v] < rowCount && voiceVolumes[v] != 63 ? voiceVolumes[v] : -1;
+            
+            if (repeatVolumes[v] == -1)
+                continue;
+            
+            for (int s = 0; s < 31; ++s)
+                if (prefixSteps[v][s] != -1)
+                    repeatNotes[repeatNoteCount++] = ((long)prefixSteps[v][s] * 4 + v) << 8 | s;
+        }
+        
+        Arrays.sort(repeatNotes, 0, repeatNoteCount);
+        
+        for (int k = 0; k < repeatNoteCount; ++k)
+        {
+            int v = (int)((repeatNotes[k] >> 8) % 4);
+            int s = (int)(repeatNotes[k] & 0xff);
+            int volume = repeatVolumes[v];
+            
+            if (sampleVolumes[s] == volume)
+                continue;
+            
+            if (variants[s][volume] == -1)
+            {
+                variants[s][volume] = variantCount;
+                variantSamples[variantCount] = 1 + s;
+                variantCount += 1;
+            }
+            
+            int variant = variants[s][volume];
+            
+            if (prefixConflictRows[v][s] != Integer.MAX_VALUE)
+                variantConflictRows[v][variant] = Math.min(variantConflictRows[v][variant], voiceRowCounts[v] + prefixConflictRows[v][s]);
+        }
+        
+        int slotCount = 0;
+        for (boolean usedSlot : usedSlots)
+            if (!usedSlot)
+                slotCount += 1;
+        
+        for (int v = 0; v < 4; ++v)
+        {
+            int conflictVariant = -1;
+            
+            for (int k = slotCount; k < variantCount; ++k)
+                if (conflictVariant == -1 || variantConflictRows[v][k] < variantConflictRows[v][conflictVariant])
+                    conflictVariant = k;
+            
+            int conflictRow = conflictVariant == -1 ? Integer.MAX_VALUE : variantConflictRows[v][conflictVariant];
+            
+            if (noteVerdicts[v] != null && noteVerdicts[v].row < voiceRowCounts[v] && noteVerdicts[v].row <= conflictRow)
+                return noteVerdicts[v];
+            
+            if (conflictRow < rowCount)
+                return new Verdict(Problem.SAMPLE_VOLUME_CHANGE, v, conflictRow, String.format("sample %d", variantSamples[conflictVariant]));
+        }
+        
+        int[] firstPtRowEffects = new int[4];
+        
+        for (int v = 0; v < 4; ++v)
+        {
+            int note = getUnrolledNote(initialRows[v], voiceRowCounts[v], collapsedRowCount);
+            
+            if (note == noNote)
+                continue;
+            
+            // a repeat is only kept on the last row
+            if ((note & isRepeat) != 0 && rowCount - collapsedRowCount != 1)
+                continue;
+            
+            firstPtRowEffects[v] = note & 0xfff;
+            
+            int variant = getUnrolledNote(initialVariants[v], voiceRowCounts[v], collapsedRowCount);
+            
+            if (collapsedRowCount >= voiceRowCounts[v] && repeatVolumes[v] != -1)
+            {
+                int sample = initialPrefixSamples[v][collapsedRowCount % voiceRowCounts[v]];
+                
+                if (sample != 0)
+                    variant = sampleVolumes[sample - 1] == repeatVolumes[v] ? -1 : variants[sample - 1][repeatVolumes[v]];
+            }
+            
+            // a note without a slot for its volume sets it with Cxx
+            if (variant >= slotCount)
+                firstPtRowEffects[v] |= 0xC00;
+        }
+        
+        for (int v = 0; v < 4; ++v)
+        {
+            for (int r = 0; r < collapsedRowCount; ++r)
+            {
+                int note = getUnrolledNote(initialRows[v], voiceRowCounts[v], r);
+                
+                if (note == noNote || (note & 0xfff) == 0)
+                    continue;
+                
+                if (firstPtRowEffects[v] != 0)
+                    return new Verdict(Problem.IRRECONCILABLE_INITIAL_EFFECTS, v, r, String.format("effect %03X", note & 0xfff));
+                
+                firstPtRowEffects[v] = note & 0xfff;
+            }
+        }
+        
+        int[] tempoPtEffects;
+        try
+        {
+            tempoPtEffects = SoundPlayerModule.translateTempoToProtracker(14565 * 122 / delay);
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            return new Verdict(Problem.SMALL_BPM, -1, -1, String.format("delay %d", delay));
+        }
+        catch (IllegalStateException ex)
+        {
+            return new Verdict(Problem.LARGE_BPM, -1, -1, String.format("delay %d", delay));
+        }
+        
+        int freeVoiceCount = 0;
+        for (int ptEffect : firstPtRowEffects)
+            if (ptEffect == 0)
+                freeVoiceCount += 1;
+        
+        if (freeVoiceCount < tempoPtEffects.length)
+            return new Verdict(Problem.IRRECONCILABLE_INITIAL_EFFECTS, -1, 0, "no room for tempo");
+        
+        return new Verdict(Problem.NONE, -1, -1, "");
+    }
+
+    private static boolean isPeriodIndex( int index )
+    {
+        return index >= 0 && index < ProtrackerModule.getPeriodCount();
+    }
+
+    private static int getUnrolledNote( int[] initialRows, int voiceRowCount, int row )
+    {
+        if (voiceRowCount != 0)
+            row %= voiceRowCount;
+        
+        return row < initialRows.length ? initialRows[row] : noNote;
+    }
+
+    public static class Verdict
+    {
+        private final Problem problem;
+        private final int voice;
+        private final int row;
+        private final String detail;
+        
+        private Verdict( Problem problem, int voice, int row, String detail )
+        {
+            this.problem = problem;
+            this.voice = voice;
+            this.row = row;
+            this.detail = detail;
+        }
+        
+        public boolean isConvertible()
+        {
+            return problem == Problem.NONE;
+        }
+        
+        public Problem getProblem()
+        {
+            return problem;
+        }
+        
+        /**
+         * @return the voice the problem is in, or -1 if it isn't in one voice
+         */
+        public int getVoice()
+        {
+            return voice;
+        }
+        
+        /**
+         * @return the row of the voice the problem is at, or -1 if it isn't
+         *         at one row
+         */
+        public int getRow()
+        {
+            return row;
+        }
+        
+        public String getDetail()
+        {
+            return detail;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return String.format("%s\t%s\t%s\t%s",
+                    problem,
+                    voice < 0 ? "-" : Integer.toString(voice),
+                    row < 0 ? "-" : Integer.toString(row),
+                    detail.isEmpty() ? "-" : detail);
+        }
+    }
+}
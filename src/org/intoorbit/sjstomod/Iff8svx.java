@@ -9,10 +9,13 @@ package org.intoorbit.sjstomod;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import org.intoorbit.sjstomod.utils.ByteBufferInputStream;
 
 /**
  *
@@ -32,7 +35,19 @@ public class Iff8svx
     
     private static final int fccBody = 0x424F4459;  // BODY
     
+    private static final int readChunkSize = 64 * 1024;
+    
     public static Iff8svx loadForm( InputStream inStream ) throws IOException
+    {
+        return loadForm(inStream, ParseBudget.standard);
+    }
+    
+    public static Iff8svx loadForm( InputStream inStream, ParseBudget budget ) throws IOException
+    {
+        return loadForm(inStream, budget, CancellationToken.none);
+    }
+    
+    public static Iff8svx loadForm( InputStream inStream, ParseBudget budget, CancellationToken token ) throws IOException
     {
         DataInputStream in = new DataInputStream(inStream);
         
@@ -44,26 +59,82 @@ public class Iff8svx
         if (size < 0)
             throw new IllegalStateException();
         
-        byte[] formBytes = new byte[size];
+        budget.checkBytes(8 + (long)size);
         
-        in.readFully(formBytes);
+        // read in chunks so that a bogus size can't make us allocate much more
+        // than the file actually contains
+        byte[] formBytes = new byte[Math.min(size, readChunkSize)];
+        
+        for (int position = 0; position < size; )
+        {
+            token.check("sample bytes loaded", position);
+            
+            if (position == formBytes.length)
+                formBytes = Arrays.copyOf(formBytes, (int)Math.min(size, formBytes.length * 2L));
+            
+            int length = in.read(formBytes, position, formBytes.length - position);
+            
+            if (length < 0)
+                throw new EOFException();
+            
+            position += length;
+        }
         
         ByteArrayInputStream formStream = new ByteArrayInputStream(formBytes);
         
-        return load8svx(new DataInputStream(formStream));
+        return load8svx(new DataInputStream(formStream), budget, token);
+    }
+    
+    /**
+     * Loads a FORM from the remaining bytes of a buffer without copying it.
+     */
+    public static Iff8svx loadForm( ByteBuffer buffer, ParseBudget budget ) throws IOException
+    {
+        return loadForm(buffer, budget, CancellationToken.none);
+    }
+    
+    /**
+     * Loads a FORM from the remaining bytes of a buffer without copying it.
+     */
+    public static Iff8svx loadForm( ByteBuffer buffer, ParseBudget budget, CancellationToken token ) throws IOException
+    {
+        buffer = buffer.duplicate();
+        
+        budget.checkBytes(buffer.remaining());
+        
+        if (buffer.remaining() < 8 || buffer.getInt() != fccForm)
+            throw new IllegalStateException();
+        
+        int size = buffer.getInt();
+        
+        if (size < 0)
+            throw new IllegalStateException();
+        
+        if (size > buffer.remaining())
+            throw new EOFException();
+        
+        buffer.limit(buffer.position() + size);
+        
+        return load8svx(new DataInputStream(new ByteBufferInputStream(buffer)), budget, token);
     }
 
     private static final Charset charset = Charset.forName("ISO-8859-1");
             
-    private static Iff8svx load8svx( DataInputStream in ) throws IOException
+    private static Iff8svx load8svx( DataInputStream in, ParseBudget budget, CancellationToken token ) throws IOException
     {
         if (in.readInt() != fcc8svx)
             throw new IllegalStateException();
         
         Iff8svx sample = new Iff8svx();
         
+        int chunkCount = 0;
+        
         while (in.available() > 0)
         {
+            budget.checkChunks(++chunkCount);
+            
+            token.check("sample chunks loaded", chunkCount - 1);
+            
             int propertyFcc = in.readInt();
             
             int propertySize = in.readInt();
@@ -71,6 +142,9 @@ public class Iff8svx
             if (propertySize < 0)
                 throw new IllegalStateException();
             
+            if (propertySize > in.available())
+                throw new EOFException();
+            
             switch (propertyFcc)
             {
                 case fccVhdr:
@@ -115,7 +189,12 @@ public class Iff8svx
                 case fccBody:
                     byte[] body = new byte[propertySize];
                     
-                    in.readFully(body);
+                    for (int position = 0; position < body.length; position += readChunkSize)
+                    {
+                        token.check("sample body bytes loaded", position);
+                        
+                        in.readFully(body, position, Math.min(readChunkSize, body.length - position));
+                    }
                     
                     sample.body = body;
                     break;
@@ -142,10 +221,49 @@ public class Iff8svx
     
     private byte[] body = new byte[0];
     
+    public int getOneShotHighOctaveSamples()
+    {
+        return oneShotHighOctaveSamples;
+    }
+    
+    public int getRepeatHighOctaveSamples()
+    {
+        return repeatHighOctaveSamples;
+    }
+    
+    public int getSamplesPerSecond()
+    {
+        return samplesPerSecond;
+    }
+    
+    /**
+     * @return the volume, where 0x10000 is full volume
+     */
+    public int getVolume()
+    {
+        return volume;
+    }
+    
+    /**
+     * @return the name, or null if the sample has none
+     */
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * @return the signed 8-bit body of all octaves
+     */
+    public ByteBuffer getBody()
+    {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+    
     // TODO: Protracker requires sample offset/lengths to be multiples of 2 bytes
     public ProtrackerModule.Sample toProtracker()
     {
-        ProtrackerModule.Sample sample = new ProtrackerModule.Sample();
+        ProtrackerModule.Sample.Builder sample = new ProtrackerModule.Sample.Builder();
         
         if (repeatHighOctaveSamples > 0)
         {
@@ -162,8 +280,8 @@ public class Iff8svx
         int highOctaveSamples = oneShotHighOctaveSamples + repeatHighOctaveSamples;
         body = Arrays.copyOf(this.body, highOctaveSamples);
         
-        sample.setSample(body);
+        sample.wrapBody(body);
         
-        return sample;
+        return sample.build();
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the pattern layouts chosen by {@link PatternLayoutOptimizer},
+ * keyed by a hash of the translated rows and the time budget of the search,
+ * so that converting the same music again skips the search.
+ *
+ * Only the search is remembered.  The rows are still translated on every
+ * conversion, and music whose translated rows differ at all, such as a
+ * module after an edit, is searched again in full, since the score of a
+ * layout depends on every pattern in it.
+ *
+ * A memo either lives only in memory or is also appended to a file, one line
+ * per layout, and read back when the file is opened again.  A line cut short
+ * is ignored.  The file starts with a header naming its format version, and
+ * a file of another version, written by a build that may have translated or
+ * searched differently, is emptied rather than read.  The file is a cache:
+ * it isn't synced, and deleting it only costs the searches.
+ *
+ * @author mindless
+ */
+public class LayoutMemo implements Closeable
+{
+    private static final Charset charset = Charset.forName("ISO-8859-1");
+
+    // raise whenever the translation, the search or the key changes, so that
+    // layouts remembered by another build aren't used
+    private static final int formatVersion = 2;
+
+    private static final String header = "sjsToMod layout memo " + formatVersion + "\n";
+
+    private final ConcurrentHashMap<String, int[]> layouts = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+
+    /**
+     * Creates a memo that lives only in memory.
+     */
+    public LayoutMemo()
+    {
+        channel = null;
+    }
+
+    /**
+     * Opens a memo that is kept in a file, creating the file if needed.
+     */
+    public LayoutMemo( Path path ) throws IOException
+    {
+        if (Files.exists(path))
+        {
+            byte[] contents = Files.readAllBytes(path);
+            
+            int end = contents.length;
+            while (end > 0 && contents[end - 1] != '\n')
+                --end;
+            
+            String lines = new String(contents, 0, end, charset);
+            
+            if (!lines.startsWith(header))
+            {
+                end = 0;
+                lines = header;
+            }
+            
+            for (String line : lines.substring(header.length()).split("\n"))
+            {
+                int separatorIndex = line.lastIndexOf(' ');
+                
+                if (separatorIndex <= 0)
+                    continue;
+                
+                try
+                {
+                    String[] lengths = line.substring(separatorIndex + 1).split(",");
+                    
+                    int[] layout = new int[lengths.length];
+                    for (int i = 0; i < layout.length; ++i)
+                        layout[i] = Integer.parseInt(lengths[i]);
+                    
+                    layouts.put(line.substring(0, separatorIndex), layout);
+                }
+                catch (NumberFormatException ex)
+                {
+                    // not a layout
+                }
+            }
+            
+            try (FileChannel truncateChannel = FileChannel.open(path, StandardOpenOption.WRITE))
+            {
+                truncateChannel.truncate(end);
+            }
+        }
+        
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        
+        if (channel.size() == 0)
+            write(header);
+    }
+
+    /**
+     * @return the remembered layout, or null if there is none; the layout
+     *         may belong to other rows whose hash collides, so it must be
+     *         checked before it is used
+     */
+    int[] get( long rowsHash, int rowCount, long timeBudgetMillis )
+    {
+        int[] layout = layouts.get(getKey(rowsHash, rowCount, timeBudgetMillis));
+        
+        return layout == null ? null : layout.clone();
+    }
+
+    void put( long rowsHash, int rowCount, long timeBudgetMillis, int[] layout ) throws IOException
+    {
+        String key = getKey(rowsHash, rowCount, timeBudgetMillis);
+        
+        if (layouts.putIfAbsent(key, layout.clone()) != null || channel == null)
+            return;
+        
+        StringBuilder line = new StringBuilder(key).append(' ');
+        
+        for (int i = 0; i < layout.length; ++i)
+            line.append(i == 0 ? "" : ",").append(layout[i]);
+        
+        line.append('\n');
+        
+        write(line.toString());
+    }
+
+    private void write( String lines ) throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.wrap(lines.getBytes(charset));
+        
+        synchronized (channel)
+        {
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        }
+    }
+
+    private static String getKey( long rowsHash, int rowCount, long timeBudgetMillis )
+    {
+        return String.format("%016x %d %d", rowsHash, rowCount, timeBudgetMillis);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (channel != null)
+            channel.close();
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds game sets -- directories holding a 'leveldata' file -- anywhere in a
+ * directory tree, and plans their conversion.
+ *
+ * Directories are walked in parallel.  Module and sample files are
+ * recognized by reading only their first few bytes; only 'leveldata' is read
+ * in full, to check its table layout and list its modules.
+ *
+ * @author mindless
+ */
+public class LibraryScanner
+{
+    private static final int sniffLength = 12;
+
+    private LibraryScanner()
+    {
+    }
+
+    /**
+     * @return the game sets found, ordered by directory
+     */
+    public static List<GameSet> scan( List<Path> roots, int parallelism ) throws IOException
+    {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        
+        try
+        {
+            ArrayList<GameSet> gameSets = new ArrayList<>();
+            
+            for (Path root : roots)
+            {
+                DirectoryTask task = new DirectoryTask(root);
+                
+                gameSets.addAll(pool.invoke(task));
+                
+                if (task.failure != null)
+                    throw task.failure;
+            }
+            
+            Collections.sort(gameSets, new Comparator<GameSet>()
+            {
+                @Override
+                public int compare( GameSet a, GameSet b )
+                {
+                    return a.directory.compareTo(b.directory);
+                }
+            });
+            
+            return gameSets;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    public static void report( List<GameSet> gameSets, PrintStream out )
+    {
+        for (GameSet gameSet : gameSets)
+        {
+            out.println(gameSet.directory);
+            
+            if (gameSet.invalidReason != null)
+            {
+                out.printf("  invalid leveldata: %s\n", gameSet.invalidReason);
+                continue;
+            }
+            
+            for (PlannedModule module : gameSet.modules)
+            {
+                if (module.path == null)
+                    out.printf("  %-12s missing module\n", module.name);
+                else if (!module.isModule)
+                    out.printf("  %-12s not an SJS module\n", module.name);
+                else if (module.missingSamples.isEmpty())
+                    out.printf("  %-12s convert\n", module.name);
+                else
+                    out.printf("  %-12s convert, missing samples %s\n", module.name, module.missingSamples);
+            }
+        }
+    }
+
+    /**
+     * Sniffs the module header: the flags byte must name at least one voice
+     * and nothing else, and the rest of the file must be whole steps.
+     */
+    static boolean isModuleHeader( ByteBuffer header, long size )
+    {
+        if (size < 3 || (size - 3) % (4 * 3) != 0 || header.limit() < 3)
+            return false;
+        
+        int flags = header.get(2) & 0xff;
+        
+        return (flags & 0x0f) != 0 && (flags & ~0x0f) == 0;
+    }
+
+    static boolean isSampleHeader( ByteBuffer header )
+    {
+        return header.limit() >= 12 &&
+                header.get(0) == 'F' && header.get(1) == 'O' && header.get(2) == 'R' && header.get(3) == 'M' &&
+                header.get(8) == '8' && header.get(9) == 'S' && header.get(10) == 'V' && header.get(11) == 'X';
+    }
+
+    private static ByteBuffer readHeader( Path path ) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(sniffLength);
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            while (header.hasRemaining() && channel.read(header) >= 0)
+                continue;
+        }
+        
+        header.flip();
+        
+        return header;
+    }
+
+    private static GameSet planGameSet( Path directory, Path levelDataPath, TreeMap<String, Path> files ) throws IOException
+    {
+        ByteBuffer levelData;
+        
+        try (FileChannel channel = FileChannel.open(levelDataPath, StandardOpenOption.READ))
+        {
+            ParseBudget.standard.checkBytes(channel.size());
+            
+            levelData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        
+        List<String> moduleNames;
+        
+        try
+        {
+            moduleNames = SoundPlayerModule.listModuleNames(levelData);
+        }
+        catch (IllegalStateException | IndexOutOfBoundsException ex)
+        {
+            return new GameSet(directory, ex.getMessage() == null ? ex.toString() : ex.getMessage(), Collections.<PlannedModule>emptyList());
+        }
+        
+        ArrayList<PlannedModule> modules = new ArrayList<>();
+        
+        for (String moduleName : moduleNames)
+        {
+            Path modulePath = files.get(moduleName);
+            
+            if (modulePath == null)
+            {
+                modules.add(new PlannedModule(moduleName, null, false, Collections.<String>emptyList()));
+                continue;
+            }
+            
+            boolean isModule = isModuleHeader(readHeader(modulePath), Files.size(modulePath));
+            
+            ArrayList<String> missingSamples = new ArrayList<>();
+            
+            for (String sampleName : SoundPlayerModule.determineSampleNames(levelData, moduleName))
+            {
+                if (sampleName == null)
+                    continue;
+                
+                Path samplePath = files.get(sampleName);
+                
+                if (samplePath == null || !isSampleHeader(readHeader(samplePath)))
+                    missingSamples.add(sampleName);
+            }
+            
+            modules.add(new PlannedModule(moduleName, modulePath, isModule, missingSamples));
+        }
+        
+        return new GameSet(directory, null, modules);
+    }
+
+    private static class DirectoryTask extends RecursiveTask<List<GameSet>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        private IOException failure;
+
+        private DirectoryTask( Path directory )
+        {
+            this.directory = directory;
+        }
+
+        @Override
+        protected List<GameSet> compute()
+        {
+            ArrayList<GameSet> gameSets = new ArrayList<>();
+            
+            ArrayList<DirectoryTask> subtasks = new ArrayList<>();
+            
+            TreeMap<String, Path> files = new TreeMap<>();
+            
+            try
+            {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory))
+                {
+                    for (Path entry : entries)
+                    {
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))
+                        {
+                            DirectoryTask subtask = new DirectoryTask(entry);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        }
+                        else if (Files.isRegularFile(entry))
+                            files.put(entry.getFileName().toString(), entry);
+                    }
+                }
+                
+                Path levelDataPath = files.get("leveldata");
+                
+                if (levelDataPath != null)
+                    gameSets.add(planGameSet(directory, levelDataPath, files));
+            }
+            catch (IOException ex)
+            {
+                failure = ex;
+            }
+            
+            for (DirectoryTask subtask : subtasks)
+            {
+                gameSets.addAll(subtask.join());
+                
+                if (failure == null)
+                    failure = subtask.failure;
+            }
+            
+            return gameSets;
+        }
+    }
+
+    public static class GameSet
+    {
+        private final Path directory;
+
+        private final String invalidReason;
+
+        private final List<PlannedModule> modules;
+
+        private GameSet( Path directory, String invalidReason, List<PlannedModule> modules )
+        {
+            this.directory = directory;
+            this.invalidReason = invalidReason;
+            this.modules = Collections.unmodifiableList(modules);
+        }
+
+        public Path getDirectory()
+        {
+            return directory;
+        }
+
+        /**
+         * @return why leveldata was rejected, or null if it is valid
+         */
+        public String getInvalidReason()
+        {
+            return invalidReason;
+        }
+
+        public List<PlannedModule> getModules()
+        {
+            return modules;
+        }
+    }
+
+    public static class PlannedModule
+    {
+        private final String name;
+
+        private final Path path;
+
+        private final boolean isModule;
+
+        private final List<String> missingSamples;
+
+        private PlannedModule( String name, Path path, boolean isModule, List<String> missingSamples )
+        {
+            this.name = name;
+            this.path = path;
+            this.isModule = isModule;
+            this.missingSamples = Collections.unmodifiableList(missingSamples);
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the module file, or null if it is missing
+         */
+        public Path getPath()
+        {
+            return path;
+        }
+
+        /**
+         * @return whether the module file has a plausible SJS header
+         */
+        public boolean isConvertible()
+        {
+            return path != null && isModule;
+        }
+
+        /**
+         * @return the samples that are missing or aren't 8SVX files
+         */
+        public List<String> getMissingSamples()
+        {
+            return missingSamples;
+        }
+    }
+}
@@ -7,16 +7,38 @@
  */
 package org.intoorbit.sjstomod;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.intoorbit.sjstomod.io.ArchiveSink;
+import org.intoorbit.sjstomod.io.AtomicFile;
+import org.intoorbit.sjstomod.io.BatchJournal;
+import org.intoorbit.sjstomod.io.DirectoryVolume;
+import org.intoorbit.sjstomod.io.Volume;
+import org.intoorbit.sjstomod.io.Volumes;
+import org.intoorbit.sjstomod.utils.BudgetedExecutor;
 
 /**
  *
@@ -33,125 +55,914 @@ public class Main
      */
     public static void main( String[] args )
     {
+        String mode = "convert";
+        long optimizationMillis = 250;
+        int headroom = -1;
+        boolean pitchMatching = false;
+        long budgetBytes = BudgetedExecutor.getDefaultBudgetBytes();
+        long deadlineMillis = 0;
+        Path layoutMemoPath = null;
+        StreamingPlayer.Builder playerBuilder = new StreamingPlayer.Builder();
+        
+        int argIndex = 0;
+        
+        try
+        {
+            for (; argIndex < args.length && args[argIndex].startsWith("-"); ++argIndex)
+            {
+                switch (args[argIndex])
+                {
+                    case "-stats":
+                        mode = "stats";
+                        break;
+                        
+                    case "-scan":
+                        mode = "scan";
+                        break;
+                        
+                    case "-wav":
+                        mode = "wav";
+                        break;
+                        
+                    case "-play":
+                        mode = "play";
+                        break;
+                        
+                    case "-r":
+                        playerBuilder.setSampleRate(Integer.parseInt(args[++argIndex]));
+                        break;
+                        
+                    case "-b":
+                        playerBuilder.setBufferCapacity(Integer.parseInt(args[++argIndex]));
+                        break;
+                        
+                    case "-l":
+                        playerBuilder.setLatencyMillis(Integer.parseInt(args[++argIndex]));
+                        break;
+                        
+                    case "-check":
+                        mode = "check";
+                        break;
+                        
+                    case "-diff":
+                        mode = "diff";
+                        break;
+                        
+                    case "-rows":
+                        mode = "rows";
+                        break;
+                        
+                    case "-pack":
+                        mode = "pack";
+                        break;
+                        
+                    case "-batch":
+                        mode = "batch";
+                        break;
+                        
+                    case "-t":
+                        optimizationMillis = Long.parseLong(args[++argIndex]);
+                        break;
+                        
+                    case "-p":
+                        pitchMatching = true;
+                        break;
+                        
+                    case "-h":
+                        headroom = Integer.parseInt(args[++argIndex]);
+                        break;
+                        
+                    case "-m":
+                        budgetBytes = Long.parseLong(args[++argIndex]) * 1024 * 1024;
+                        break;
+                        
+                    case "-c":
+                        layoutMemoPath = Paths.get(args[++argIndex]);
+                        break;
+                        
+                    case "-d":
+                        deadlineMillis = Long.parseLong(args[++argIndex]);
+                        if (deadlineMillis < 0)
+                            throw new IllegalArgumentException(args[argIndex]);
+                        break;
+                        
+                    default:
+                        throw new IllegalArgumentException(args[argIndex]);
+                }
+            }
+        }
+        catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex)
+        {
+            argIndex = args.length;
+        }
+        
+        args = Arrays.copyOfRange(args, argIndex, args.length);
+        
         if (args.length < 1)
         {
             System.err.println("SJS-to-MOD Converter v1");
-            System.err.println("Usage: sjsToMod <sjsModule> [<protrackerModule>]");
+            System.err.println("Usage: sjsToMod [-t <millis>] [-c <layoutCache>] [-h <headroom>] [-p] [-d <millis>] <sjsModule> [<protrackerModule>]");
+            System.err.println("       sjsToMod -batch [-m <megabytes>] [-d <millis>] <archive.zip|archive.tar|directory> <sjsModule>...");
+            System.err.println("       sjsToMod -rows <firstRow> <rowCount> <sjsModule>");
+            System.err.println("       sjsToMod -pack <protrackerModule> <sjsModule>...");
+            System.err.println("       sjsToMod -wav <outputDirectory> <volume>...");
+            System.err.println("       sjsToMod -play [-p] [-r <rate>] [-b <events>] [-l <millis>] <sjsModule> [<pcmOutput>]");
+            System.err.println("       sjsToMod -check <sjsModule|directory>...");
+            System.err.println("       sjsToMod -diff <oldModule|directory> <newModule|directory>");
+            System.err.println("       sjsToMod -scan <directory>...");
+            System.err.println("       sjsToMod -stats <sjsModule|directory>...");
             System.err.println("'leveldata' and sample files must be in the same directory as sjsModule");
+            System.err.println("sjsModule may be inside an ADF disk image or ZIP archive: <volume>!<sjsModule>");
+            System.err.println("  -t <millis>    time to spend optimizing pattern layout (default 250)");
+            System.err.println("  -c <file>      remember optimized pattern layouts in a file, so music that was");
+            System.err.println("                 converted before isn't optimized again (edited music is)");
+            System.err.println("  -h <headroom>  normalize samples, leaving the given headroom (0-127)");
+            System.err.println("  -p             match sample pitch with finetune instead of resampling");
+            System.err.println("  -d <millis>    give up on a module that takes longer to convert (default no limit)");
+            System.err.println("  -batch         convert many modules in parallel into one archive, or into a");
+            System.err.println("                 directory, resuming a run that was interrupted");
+            System.err.println("  -m <megabytes> memory that the modules converting at once may take (default 3/4 of the heap)");
+            System.err.println("  -rows          print a window of rows, using an index saved next to the module");
+            System.err.println("  -pack          convert many modules into one, sharing samples and patterns");
+            System.err.println("  -wav           extract the samples of every game set as WAV files");
+            System.err.println("  -play          stream 16-bit stereo PCM to pcmOutput or standard output in real time");
+            System.err.println("  -r <rate>      PCM sample rate (default 44100)");
+            System.err.println("  -b <events>    ring buffer size between sequencer and mixer, a power of 2 (default 4096)");
+            System.err.println("  -l <millis>    target latency of the sequencer ahead of the mixer (default 100)");
+            System.err.println("  -check         report whether each module can be converted, without converting");
+            System.err.println("  -diff          report structural differences between Protracker modules");
+            System.err.println("  -scan          find game sets and plan their conversion");
+            System.err.println("  -stats         report effect, note and row statistics of many modules");
             System.exit(-1);
         }
         
-        Path modulePath = Paths.get(args[0]);
-
-        File moduleFile = modulePath.toFile();
+        if (mode.equals("stats"))
+        {
+            try
+            {
+                ModuleStatistics statistics = ModuleStatistics.scan(findFiles(args), Runtime.getRuntime().availableProcessors());
+                
+                statistics.report(System.out);
+            }
+            catch (IOException | InterruptedException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            return;
+        }
         
-        FileInputStream moduleStream = null;
-        try
+        if (mode.equals("check"))
+        {
+            try
+            {
+                List<Path> paths = findFiles(args);
+                
+                ConvertibilityCheck.report(paths, ConvertibilityCheck.check(paths, Runtime.getRuntime().availableProcessors()), System.out);
+            }
+            catch (IOException | InterruptedException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            return;
+        }
+        
+        if (mode.equals("wav"))
         {
-            moduleStream = new FileInputStream(moduleFile);
+            if (args.length < 2)
+            {
+                System.err.println("no volumes to extract");
+                System.exit(-1);
+            }
+            
+            try
+            {
+                Path outputDirectory = Paths.get(args[0]);
+                
+                for (int i = 1; i < args.length; ++i)
+                {
+                    try (Volume volume = Volumes.open(Paths.get(args[i])))
+                    {
+                        extractSamples(volume, outputDirectory.resolve(Paths.get(args[i]).getFileName()));
+                    }
+                }
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            return;
         }
-        catch (FileNotFoundException ex)
+        
+        if (mode.equals("diff"))
         {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
-            System.exit(-1);
+            if (args.length != 2)
+            {
+                System.err.println("expected two modules or directories to compare");
+                System.exit(-1);
+            }
+            
+            Path oldPath = Paths.get(args[0]);
+            Path newPath = Paths.get(args[1]);
+            
+            Map<String, List<String>> differences = null;
+            try
+            {
+                differences = Files.isDirectory(oldPath) && Files.isDirectory(newPath) ?
+                        ModuleDiff.diffDirectories(oldPath, newPath, Runtime.getRuntime().availableProcessors()) :
+                        Collections.singletonMap(newPath.toString(), ModuleDiff.diff(oldPath, newPath));
+            }
+            catch (IOException | InterruptedException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            ModuleDiff.report(differences, System.out);
+            
+            // like diff, exit with 1 when there are differences
+            boolean different = false;
+            for (List<String> fileDifferences : differences.values())
+                different |= !fileDifferences.isEmpty();
+            
+            if (different)
+                System.exit(1);
+            
+            return;
         }
         
-        SoundPlayerModule module = null;
-        try
+        if (mode.equals("scan"))
+        {
+            ArrayList<Path> roots = new ArrayList<>();
+            for (String arg : args)
+                roots.add(Paths.get(arg));
+            
+            try
+            {
+                LibraryScanner.report(LibraryScanner.scan(roots, Runtime.getRuntime().availableProcessors()), System.out);
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            return;
+        }
+        
+        if (mode.equals("batch"))
+        {
+            if (args.length < 2)
+            {
+                System.err.println("no modules to convert");
+                System.exit(-1);
+            }
+            
+            int failedCount = 0;
+            try
+            {
+                String output = args[0].toLowerCase();
+                
+                failedCount = output.endsWith(".zip") || output.endsWith(".tar") ?
+                        convertBatch(Paths.get(args[0]), Arrays.copyOfRange(args, 1, args.length), optimizationMillis, headroom, pitchMatching, openLayoutMemo(layoutMemoPath), budgetBytes, deadlineMillis) :
+                        convertBatchToDirectory(Paths.get(args[0]), Arrays.copyOfRange(args, 1, args.length), optimizationMillis, headroom, pitchMatching, openLayoutMemo(layoutMemoPath), budgetBytes, deadlineMillis);
+            }
+            catch (IOException | InterruptedException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            if (failedCount > 0)
+                System.exit(-1);
+            
+            return;
+        }
+        
+        if (mode.equals("rows"))
+        {
+            if (args.length != 3)
+            {
+                System.err.println("expected a first row, a row count and a module");
+                System.exit(-1);
+            }
+            
+            try (FileChannel channel = FileChannel.open(Paths.get(args[2]), StandardOpenOption.READ))
+            {
+                int firstRow = Integer.parseInt(args[0]);
+                
+                RowIndex index = RowIndex.open(Paths.get(args[2]), RowIndex.defaultInterval, ParseBudget.standard);
+                
+                SoundPlayerModule.Note[][] rows = index.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), firstRow, Integer.parseInt(args[1]));
+                
+                for (int r = 0; r < rows.length; ++r)
+                {
+                    System.out.printf("%d", firstRow + r);
+                    
+                    for (SoundPlayerModule.Note note : rows[r])
+                        System.out.printf(" | %s", note == null ? "... .. .. ..." : note);
+                    
+                    System.out.println();
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            return;
+        }
+        
+        if (mode.equals("pack"))
+        {
+            if (args.length < 2)
+            {
+                System.err.println("no modules to pack");
+                System.exit(-1);
+            }
+            
+            Converter converter = new Converter.Builder()
+                    .setOptimizationMillis(optimizationMillis)
+                    .setHeadroom(headroom)
+                    .setPitchMatching(pitchMatching)
+                    .setLayoutMemo(openLayoutMemo(layoutMemoPath))
+                    .build();
+            
+            ArrayList<ProtrackerModule> songs = new ArrayList<>();
+            ArrayList<Integer> songPositions = new ArrayList<>();
+            
+            ProtrackerModule packedModule = null;
+            try
+            {
+                for (int i = 1; i < args.length; ++i)
+                {
+                    String entryName = getEntryName(args[i]);
+                    
+                    try (Volume volume = openVolume(args[i]))
+                    {
+                        ArrayList<String> warnings = new ArrayList<>();
+                        
+                        songs.add(converter.convert(SoundPlayerModule.load(volume.read(entryName), ParseBudget.standard), entryName, volume, warnings));
+                        
+                        for (String warning : warnings)
+                            System.err.printf("%s: %s\n", args[i], warning);
+                    }
+                }
+                
+                packedModule = ProtrackerModule.pack(Paths.get(args[0]).getFileName().toString(), songs, songPositions);
+                
+                try (AtomicFile outFile = new AtomicFile(Paths.get(args[0])))
+                {
+                    packedModule.save(outFile.getChannel(), ByteBuffer.allocate(64 * 1024));
+                    outFile.commit();
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            for (int i = 0; i < songPositions.size(); ++i)
+                System.out.printf("%d\t%s\n", songPositions.get(i), args[1 + i]);
+            
+            return;
+        }
+        
+        String moduleEntryName = getEntryName(args[0]);
+        
+        try (Volume volume = openVolume(args[0]))
         {
-            module = SoundPlayerModule.load(moduleStream);
+            if (mode.equals("play"))
+            {
+                Converter converter = new Converter.Builder()
+                        .setPitchMatching(pitchMatching)
+                        .build();
+                
+                StreamingPlayer player = playerBuilder.build();
+                
+                try (FileChannel outChannel = args.length < 2 ?
+                        new FileOutputStream(FileDescriptor.out).getChannel() :
+                        FileChannel.open(Paths.get(args[1]), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+                {
+                    SoundPlayerModule module = SoundPlayerModule.load(volume.read(moduleEntryName), ParseBudget.standard);
+                    
+                    ArrayList<String> warnings = new ArrayList<>();
+                    int[] sampleTransposes = new int[16];
+                    ProtrackerModule.Sample[] samples = converter.loadSamples(moduleEntryName, volume, sampleTransposes, warnings);
+                    
+                    for (String warning : warnings)
+                        System.err.println(warning);
+                    
+                    player.play(module, samples, sampleTransposes, outChannel);
+                }
+                catch (IOException | InterruptedException ex)
+                {
+                    Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                    System.exit(-1);
+                }
+                
+                System.err.printf("underruns: %d, sequencer stalls: %d\n", player.getUnderrunCount(), player.getStallCount());
+                
+                return;
+            }
+            
+            if (args.length < 2)
+            {
+                try
+                {
+                    SoundPlayerModule.load(volume.read(moduleEntryName), ParseBudget.standard).dump();
+                }
+                catch (IOException ex)
+                {
+                    Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                System.exit(-1);
+            }
+            
+            Converter converter = new Converter.Builder()
+                    .setOptimizationMillis(optimizationMillis)
+                    .setHeadroom(headroom)
+                    .setPitchMatching(pitchMatching)
+                    .setLayoutMemo(openLayoutMemo(layoutMemoPath))
+                    .build();
+            
+            Converter.Result result = null;
+            try (AtomicFile outFile = new AtomicFile(Paths.get(args[1])))
+            {
+                result = converter.convert(volume, moduleEntryName, outFile.getChannel(), newCancellationToken(deadlineMillis));
+                
+                if (result.isSuccess())
+                    outFile.commit();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(-1);
+            }
+            
+            for (String warning : result.getWarnings())
+                System.err.println(warning);
+            
+            if (!result.isSuccess())
+            {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, result.getError());
+                System.exit(-1);
+            }
         }
         catch (IOException ex)
         {
             Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
             System.exit(-1);
         }
-        
-        if (args.length < 2)
+    }
+    
+    /**
+     * @return the layout memo kept in a file, or one in memory if there is no
+     *         file or it can't be opened; a run only converts the modules it
+     *         is given, so a memo in memory stays small
+     */
+    private static LayoutMemo openLayoutMemo( Path path )
+    {
+        if (path != null)
         {
-            module.dump();
-            System.exit(-1);
+            try
+            {
+                return new LayoutMemo(path);
+            }
+            catch (IOException ex)
+            {
+                System.err.printf("%s: %s\n", path, ex);
+            }
         }
-
-        String moduleName = modulePath.getFileName().toString();
         
-        Path moduleDirectoryPath = modulePath.toAbsolutePath().getParent();
+        return new LayoutMemo();
+    }
+    
+    /**
+     * @param deadlineMillis the time a conversion may take, or 0 for no limit
+     */
+    private static CancellationToken newCancellationToken( long deadlineMillis )
+    {
+        return deadlineMillis > 0 ? new CancellationToken(deadlineMillis) : CancellationToken.none;
+    }
+    
+    // a module inside a disk image or archive is given as "<volume>!<name>"
+    private static Volume openVolume( String moduleSpec ) throws IOException
+    {
+        int volumeSeparatorIndex = getVolumeSeparatorIndex(moduleSpec);
+        
+        if (volumeSeparatorIndex >= 0)
+            return Volumes.open(Paths.get(moduleSpec.substring(0, volumeSeparatorIndex)));
+        
+        return new DirectoryVolume(Paths.get(moduleSpec).toAbsolutePath().getParent());
+    }
+    
+    private static String getEntryName( String moduleSpec )
+    {
+        int volumeSeparatorIndex = getVolumeSeparatorIndex(moduleSpec);
+        
+        if (volumeSeparatorIndex >= 0)
+            return moduleSpec.substring(volumeSeparatorIndex + 1);
+        
+        return Paths.get(moduleSpec).getFileName().toString();
+    }
+    
+    /**
+     * @return the index of the first '!' that follows the path of a file, or
+     *         -1 if the module spec is a plain path
+     */
+    private static int getVolumeSeparatorIndex( String moduleSpec )
+    {
+        for (int i = moduleSpec.indexOf('!'); i >= 0; i = moduleSpec.indexOf('!', i + 1))
+            if (Files.isRegularFile(Paths.get(moduleSpec.substring(0, i))))
+                return i;
+        
+        return -1;
+    }
+    
+    /**
+     * Converts modules in parallel into a ZIP or tar archive.
+     * 
+     * @return the number of modules that failed to convert
+     */
+    private static int convertBatch( Path archivePath, String[] moduleSpecs, long optimizationMillis, int headroom, boolean pitchMatching, LayoutMemo layoutMemo, long budgetBytes, final long deadlineMillis ) throws IOException, InterruptedException
+    {
+        final Converter converter = new Converter.Builder()
+                .setOptimizationMillis(optimizationMillis)
+                .setHeadroom(headroom)
+                .setPitchMatching(pitchMatching)
+                .setLayoutMemo(layoutMemo)
+                .build();
+        
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        
+        BudgetedExecutor executor = new BudgetedExecutor(threadCount, budgetBytes);
+        
+        final AtomicInteger failedCount = new AtomicInteger();
+        
+        String[] outputNames = getOutputNames(moduleSpecs);
         
-        ProtrackerModule.Sample[] ptSamples = new ProtrackerModule.Sample[16];
+        final ArchiveSink sink = new ArchiveSink(archivePath, ArchiveSink.getFormat(archivePath), threadCount * 2);
+        
+        boolean queued = false;
         
         try
         {
-            loadSamples(moduleDirectoryPath, moduleName, ptSamples);
+            for (int i = 0; i < moduleSpecs.length; ++i)
+            {
+                final long sequence = i;
+                final String moduleSpec = moduleSpecs[i];
+                final String finalEntryName = outputNames[i];
+                
+                // a job is started only once its entry fits in the window of
+                // the sink, so a job never waits in put while holding a
+                // thread that the oldest unwritten module needs
+                sink.awaitWindow(sequence);
+                
+                // the converted module is held until it is written
+                executor.execute(estimatePeakBytes(converter, moduleSpec) * 2, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // the writer waits for every sequence number, so one
+                        // that isn't put must be skipped however the job ends
+                        boolean put = false;
+                        
+                        try
+                        {
+                            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+                            
+                            Converter.Result result;
+                            
+                            try (Volume volume = openVolume(moduleSpec))
+                            {
+                                result = converter.convert(volume, getEntryName(moduleSpec), Channels.newChannel(outStream), newCancellationToken(deadlineMillis));
+                            }
+                            catch (IOException | RuntimeException ex)
+                            {
+                                result = null;
+                                System.err.printf("%s: %s\n", moduleSpec, ex);
+                            }
+                            
+                            if (result != null)
+                            {
+                                for (String warning : result.getWarnings())
+                                    System.err.printf("%s: %s\n", moduleSpec, warning);
+                                
+                                if (!result.isSuccess())
+                                {
+                                    System.err.printf("%s: %s\n", moduleSpec, result.getError());
+                                    result = null;
+                                }
+                            }
+                            
+                            if (result == null)
+                            {
+                                failedCount.incrementAndGet();
+                                return;
+                            }
+                            
+                            byte[] ptModuleBytes = outStream.toByteArray();
+                            
+                            sink.put(sequence, finalEntryName, ptModuleBytes);
+                            put = true;
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        finally
+                        {
+                            if (!put)
+                                skip(sink, sequence);
+                        }
+                    }
+                });
+            }
+            
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            
+            queued = true;
         }
-        catch (IOException ex)
+        finally
         {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+            executor.shutdownNow();
+            
+            // a run that failed part-way leaves the old archive in place
+            if (!queued)
+                sink.abort();
         }
         
-        FileOutputStream outStream = null;
+        sink.close();
+        
+        return failedCount.get();
+    }
+
+    private static void skip( ArchiveSink sink, long sequence )
+    {
         try
         {
-            outStream = new FileOutputStream(args[1]);
+            sink.skip(sequence);
         }
-        catch (FileNotFoundException ex)
+        catch (InterruptedException ex)
         {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
-            System.exit(-1);
+            // the run is being aborted, which releases the writer
+            Thread.currentThread().interrupt();
         }
+    }
+    
+    /**
+     * Converts modules in parallel into a directory.  Each module is written
+     * to a temporary file and renamed into place once it is synced, and then
+     * recorded in a journal in the directory with the hash of the module and
+     * the options.  A module that the journal records as already converted
+     * from the same input is skipped, so an interrupted run can just be run
+     * again.
+     * 
+     * @return the number of modules that failed to convert
+     */
+    private static int convertBatchToDirectory( final Path outputDirectory, String[] moduleSpecs, long optimizationMillis, int headroom, boolean pitchMatching, LayoutMemo layoutMemo, long budgetBytes, final long deadlineMillis ) throws IOException, InterruptedException
+    {
+        final Converter converter = new Converter.Builder()
+                .setOptimizationMillis(optimizationMillis)
+                .setHeadroom(headroom)
+                .setPitchMatching(pitchMatching)
+                .setLayoutMemo(layoutMemo)
+                .build();
         
-        ProtrackerModule ptModule = module.toProtracker(ptSamples);
+        final ByteBuffer options = ByteBuffer.wrap(String.format("-t %d -h %d%s", optimizationMillis, headroom, pitchMatching ? " -p" : "").getBytes("UTF-8"));
         
-        ptModule.setTitle(moduleName);
+        Files.createDirectories(outputDirectory);
         
-        try
+        BudgetedExecutor executor = new BudgetedExecutor(Runtime.getRuntime().availableProcessors(), budgetBytes);
+        
+        final AtomicInteger failedCount = new AtomicInteger();
+        final AtomicInteger skippedCount = new AtomicInteger();
+        
+        String[] outputNames = getOutputNames(moduleSpecs);
+        
+        try (final BatchJournal journal = new BatchJournal(outputDirectory.resolve(".sjsToMod-journal")))
         {
-            ptModule.save(outStream);
+            for (int i = 0; i < moduleSpecs.length; ++i)
+            {
+                final String moduleSpec = moduleSpecs[i];
+                final String outputName = outputNames[i];
+                
+                executor.execute(estimatePeakBytes(converter, moduleSpec), new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Path outputPath = outputDirectory.resolve(outputName);
+                        
+                        try (Volume volume = openVolume(moduleSpec))
+                        {
+                            ByteBuffer module = volume.read(getEntryName(moduleSpec));
+                            
+                            String inputHash = hashInputs(converter, volume, getEntryName(moduleSpec), module, options);
+                            
+                            if (journal.isDone(outputName, inputHash) && Files.exists(outputPath))
+                            {
+                                skippedCount.incrementAndGet();
+                                return;
+                            }
+                            
+                            try (AtomicFile outputFile = new AtomicFile(outputPath))
+                            {
+                                Converter.Result result = converter.convert(module, getEntryName(moduleSpec), volume, outputFile.getChannel(), newCancellationToken(deadlineMillis));
+                                
+                                for (String warning : result.getWarnings())
+                                    System.err.printf("%s: %s\n", moduleSpec, warning);
+                                
+                                if (!result.isSuccess())
+                                {
+                                    System.err.printf("%s: %s\n", moduleSpec, result.getError());
+                                    failedCount.incrementAndGet();
+                                    return;
+                                }
+                                
+                                outputFile.commit();
+                            }
+                            
+                            journal.record(outputName, inputHash);
+                        }
+                        catch (IOException | RuntimeException ex)
+                        {
+                            System.err.printf("%s: %s\n", moduleSpec, ex);
+                            failedCount.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
         }
-        catch (IOException ex)
+        finally
         {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
-            System.exit(-1);
+            executor.shutdownNow();
         }
+        
+        if (skippedCount.get() > 0)
+            System.err.printf("skipped %d modules converted by an earlier run\n", skippedCount.get());
+        
+        return failedCount.get();
     }
 
-    private static void loadSamples( Path moduleDirectoryPath, String moduleName, ProtrackerModule.Sample[] ptSamples ) throws IOException
+    /**
+     * @return a hash of the module, the options, and the name and contents
+     *         of every other file that converting the module reads, so that
+     *         fixing a sample or 'leveldata' makes the module convert again
+     */
+    private static String hashInputs( Converter converter, Volume volume, String moduleEntryName, ByteBuffer module, ByteBuffer options ) throws IOException
     {
-        File levelDataFile = moduleDirectoryPath.resolve("leveldata").toFile();
-        if (!levelDataFile.exists())
+        ArrayList<ByteBuffer> inputs = new ArrayList<>();
+        
+        inputs.add(module);
+        inputs.add(options);
+        
+        for (String entryName : converter.getInputEntryNames(volume, moduleEntryName))
         {
-            System.err.println("cannot determine samples: missing 'leveldata'");
-            return;
+            ByteBuffer contents = volume.read(entryName);
+            
+            inputs.add(ByteBuffer.wrap(String.format("\n%s\n%d\n", entryName, contents.remaining()).getBytes("UTF-8")));
+            inputs.add(contents);
         }
         
-        RandomAccessFile levelDataDataInputFile = new RandomAccessFile(levelDataFile, "r");
+        return BatchJournal.hash(inputs.toArray(new ByteBuffer[inputs.size()]));
+    }
 
-        String[] sampleNames = SoundPlayerModule.determineSampleNames(levelDataDataInputFile, moduleName);
+    /**
+     * @return the estimated peak memory of converting a module, or 0 if it
+     *         can't be estimated, in which case converting it will report why
+     */
+    private static long estimatePeakBytes( Converter converter, String moduleSpec )
+    {
+        try (Volume volume = openVolume(moduleSpec))
+        {
+            return converter.estimatePeakBytes(volume, getEntryName(moduleSpec));
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            return 0;
+        }
+    }
 
-        if (sampleNames == null)
+    /**
+     * @return a file name for the output of each module, made unique by
+     *         numbering repeated module names
+     */
+    private static String[] getOutputNames( String[] moduleSpecs )
+    {
+        String[] outputNames = new String[moduleSpecs.length];
+        
+        HashSet<String> usedNames = new HashSet<>();
+        
+        for (int i = 0; i < moduleSpecs.length; ++i)
         {
-            System.err.println("cannot determine samples: no entry in 'leveldata'");
-            return;
+            String moduleName = Volumes.getFileName(getEntryName(moduleSpecs[i]));
+            String outputName = moduleName + ".mod";
+            for (int n = 2; !usedNames.add(outputName); ++n)
+                outputName = moduleName + "-" + n + ".mod";
+            
+            outputNames[i] = outputName;
         }
+        
+        return outputNames;
+    }
 
-        for (int i = 0; i < sampleNames.length; ++i)
+    /**
+     * Writes the samples used by the modules of every 'leveldata' in the
+     * volume as WAV files, mirroring the directories of the volume.
+     */
+    private static void extractSamples( Volume volume, Path outputDirectory ) throws IOException
+    {
+        WavWriter wavWriter = new WavWriter();
+        
+        for (String name : volume.list())
         {
-            if (sampleNames[i] == null)
+            if (!Volumes.getFileName(name).equals("leveldata"))
                 continue;
-
-            File sampleFile = moduleDirectoryPath.resolve(sampleNames[i]).toFile();
-            if (!sampleFile.exists())
+            
+            String directory = Volumes.getDirectory(name);
+            
+            ByteBuffer levelData = volume.read(name);
+            
+            TreeSet<String> sampleNames = new TreeSet<>();
+            
+            try
+            {
+                for (String moduleName : SoundPlayerModule.listModuleNames(levelData))
+                    for (String sampleName : SoundPlayerModule.determineSampleNames(levelData, moduleName))
+                        if (sampleName != null)
+                            sampleNames.add(sampleName);
+            }
+            catch (IllegalStateException | IndexOutOfBoundsException ex)
             {
-                System.err.printf("missing sample '%s'\n", sampleNames[i]);
+                System.err.printf("%s: invalid 'leveldata': %s\n", name, ex.getMessage());
                 continue;
             }
-
-            FileInputStream sampleStream = new FileInputStream(sampleFile);
-
-            Iff8svx sample = Iff8svx.loadForm(sampleStream);
-
-            ptSamples[i] = sample.toProtracker();
-
-            ptSamples[i].setName(sampleNames[i]);
+            
+            Path sampleDirectory = outputDirectory.resolve(directory);
+            
+            Files.createDirectories(sampleDirectory);
+            
+            for (String sampleName : sampleNames)
+            {
+                if (!volume.exists(directory + sampleName))
+                {
+                    System.err.printf("%s: missing sample '%s'\n", name, sampleName);
+                    continue;
+                }
+                
+                Iff8svx sample;
+                
+                try
+                {
+                    sample = Iff8svx.loadForm(volume.read(directory + sampleName), ParseBudget.standard);
+                }
+                catch (IOException | IllegalStateException ex)
+                {
+                    System.err.printf("%s: invalid sample '%s': %s\n", name, sampleName, ex);
+                    continue;
+                }
+                
+                try (FileChannel out = FileChannel.open(sampleDirectory.resolve(sampleName + ".wav"), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+                {
+                    wavWriter.write(sample, out);
+                }
+            }
+        }
+    }
+    
+    private static List<Path> findFiles( String[] args ) throws IOException
+    {
+        final ArrayList<Path> paths = new ArrayList<>();
+        
+        for (String arg : args)
+        {
+            Files.walkFileTree(Paths.get(arg), new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+                {
+                    if (attrs.isRegularFile())
+                        paths.add(file);
+                    
+                    return FileVisitResult.CONTINUE;
+                }
+            });
         }
+        
+        return paths;
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Structural differences between Protracker modules: title, sample
+ * metadata, order table and pattern cells.
+ *
+ * Patterns are compared position by position through the order table, so
+ * renumbered patterns aren't reported as changes.  Patterns and then rows
+ * are compared by their 64-bit content hashes first, and only rows whose
+ * hashes differ are compared cell by cell.
+ *
+ * @author mindless
+ */
+public class ModuleDiff
+{
+    private ModuleDiff()
+    {
+    }
+
+    /**
+     * @return a line for each difference; empty if the modules are the same
+     */
+    public static List<String> diff( ProtrackerModule oldModule, ProtrackerModule newModule )
+    {
+        ArrayList<String> differences = new ArrayList<>();
+        
+        if (!oldModule.getTitle().equals(newModule.getTitle()))
+            differences.add(String.format("title: '%s' -> '%s'", oldModule.getTitle(), newModule.getTitle()));
+        
+        for (int s = 0; s < 31; ++s)
+        {
+            String oldSample = describe(oldModule.getSample(s));
+            String newSample = describe(newModule.getSample(s));
+            
+            if (!oldSample.equals(newSample))
+                differences.add(String.format("sample %02d: %s -> %s", s + 1, oldSample, newSample));
+        }
+        
+        List<Integer> oldPatternTable = oldModule.getPatternTable();
+        List<Integer> newPatternTable = newModule.getPatternTable();
+        
+        if (oldPatternTable.size() != newPatternTable.size())
+            differences.add(String.format("positions: %d -> %d", oldPatternTable.size(), newPatternTable.size()));
+        
+        if (oldModule.getRepeatIndex() != newModule.getRepeatIndex())
+            differences.add(String.format("repeat position: %d -> %d", oldModule.getRepeatIndex(), newModule.getRepeatIndex()));
+        
+        if (oldModule.getPatterns().size() != newModule.getPatterns().size())
+            differences.add(String.format("patterns: %d -> %d", oldModule.getPatterns().size(), newModule.getPatterns().size()));
+        
+        int positionCount = Math.min(oldPatternTable.size(), newPatternTable.size());
+        
+        for (int i = 0; i < positionCount; ++i)
+        {
+            int oldPatternIndex = oldPatternTable.get(i);
+            int newPatternIndex = newPatternTable.get(i);
+            
+            ProtrackerModule.Pattern oldPattern = oldModule.getPatterns().get(oldPatternIndex);
+            ProtrackerModule.Pattern newPattern = newModule.getPatterns().get(newPatternIndex);
+            
+            if (oldPattern.getContentHash() == newPattern.getContentHash())
+                continue;
+            
+            for (int r = 0; r < 64; ++r)
+            {
+                if (oldPattern.getRowHash(r) == newPattern.getRowHash(r))
+                    continue;
+                
+                for (int v = 0; v < 4; ++v)
+                {
+                    ProtrackerModule.Note oldNote = oldPattern.getNote(r, v);
+                    ProtrackerModule.Note newNote = newPattern.getNote(r, v);
+                    
+                    if (oldNote == null ? newNote == null : oldNote.equals(newNote))
+                        continue;
+                    
+                    differences.add(String.format("position %d (pattern %d -> %d) row %d voice %d: %s -> %s",
+                            i, oldPatternIndex, newPatternIndex, r, v,
+                            oldNote == null ? "... .. .. ..." : oldNote,
+                            newNote == null ? "... .. .. ..." : newNote));
+                }
+            }
+        }
+        
+        return differences;
+    }
+
+    /**
+     * Compares the modules at the same relative paths under two directories,
+     * in parallel.
+     * 
+     * @return the differences of each relative path that differs, in order
+     *         of path; a module that can't be read, or is only in one of the
+     *         directories, is reported as a single difference
+     */
+    public static Map<String, List<String>> diffDirectories( final Path oldDirectory, final Path newDirectory, int threadCount ) throws IOException, InterruptedException
+    {
+        TreeSet<String> names = new TreeSet<>();
+        names.addAll(listFiles(oldDirectory));
+        names.addAll(listFiles(newDirectory));
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        
+        try
+        {
+            TreeMap<String, Future<List<String>>> futures = new TreeMap<>();
+            
+            for (final String name : names)
+            {
+                futures.put(name, executor.submit(new Callable<List<String>>()
+                {
+                    @Override
+                    public List<String> call()
+                    {
+                        return diff(oldDirectory.resolve(name), newDirectory.resolve(name));
+                    }
+                }));
+            }
+            
+            TreeMap<String, List<String>> differences = new TreeMap<>();
+            
+            for (Map.Entry<String, Future<List<String>>> future : futures.entrySet())
+            {
+                try
+                {
+                    List<String> fileDifferences = future.getValue().get();
+                    
+                    if (!fileDifferences.isEmpty())
+                        differences.put(future.getKey(), fileDifferences);
+                }
+                catch (ExecutionException ex)
+                {
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+            
+            return differences;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public static void report( Map<String, List<String>> differences, PrintStream out )
+    {
+        for (Map.Entry<String, List<String>> entry : differences.entrySet())
+        {
+            if (entry.getValue().isEmpty())
+                continue;
+            
+            out.println(entry.getKey());
+            
+            for (String difference : entry.getValue())
+                out.printf("  %s\n", difference);
+        }
+    }
+
+    static List<String> diff( Path oldPath, Path newPath )
+    {
+        if (!Files.isRegularFile(oldPath))
+            return Collections.singletonList("added");
+        if (!Files.isRegularFile(newPath))
+            return Collections.singletonList("removed");
+        
+        ProtrackerModule oldModule;
+        ProtrackerModule newModule;
+        
+        try
+        {
+            oldModule = ProtrackerModule.load(map(oldPath));
+            newModule = ProtrackerModule.load(map(newPath));
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            return Collections.singletonList("unreadable: " + ex);
+        }
+        
+        return diff(oldModule, newModule);
+    }
+
+    private static ByteBuffer map( Path path ) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static List<String> listFiles( final Path directory ) throws IOException
+    {
+        final ArrayList<String> names = new ArrayList<>();
+        
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+            {
+                if (attrs.isRegularFile())
+                    names.add(directory.relativize(file).toString());
+                
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        
+        return names;
+    }
+
+    private static String describe( ProtrackerModule.Sample sample )
+    {
+        if (sample == null)
+            return "none";
+        
+        return String.format("'%s' length %d finetune %d volume %d repeat %d+%d body %016x",
+                sample.getName(),
+                sample.getLength(),
+                sample.getFineTune(),
+                sample.getVolume(),
+                sample.getRepeatOffset(),
+                sample.getRepeatLength(),
+                sample.getAnalysis().getHash());
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.intoorbit.sjstomod.utils.StringUtils;
+
+/**
+ * Histograms of what SJS modules contain, gathered by scanning the raw bytes
+ * of the modules rather than loading them.
+ *
+ * Each file is scanned into its own statistics, which are merged once all of
+ * the scans are done, so scanning threads never share anything.
+ *
+ * @author mindless
+ */
+public class ModuleStatistics
+{
+    private long moduleCount;
+    private long failedCount;
+
+    private final long[] effectCounts = new long[256];
+    private final long[] semitoneCounts = new long[256];
+    private final long[] sampleCounts = new long[256];
+    private final long[] delayCounts = new long[0x88 - 0x57 + 1];
+    private final long[] voiceMaskCounts = new long[16];
+
+    private final TreeMap<Integer, Long> rowCounts = new TreeMap<>();
+
+    /**
+     * Scans the given files in parallel.  Files that aren't SJS modules are
+     * counted as failed.
+     */
+    public static ModuleStatistics scan( List<Path> paths, int threadCount ) throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        
+        try
+        {
+            ArrayList<Future<ModuleStatistics>> futures = new ArrayList<>();
+            
+            for (final Path path : paths)
+            {
+                futures.add(executor.submit(new Callable<ModuleStatistics>()
+                {
+                    @Override
+                    public ModuleStatistics call()
+                    {
+                        ModuleStatistics statistics = new ModuleStatistics();
+                        
+                        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+                        {
+                            ParseBudget.standard.checkBytes(channel.size());
+                            
+                            statistics.scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                        }
+                        catch (IOException | RuntimeException ex)
+                        {
+                            statistics = new ModuleStatistics();
+                            statistics.failedCount = 1;
+                        }
+                        
+                        return statistics;
+                    }
+                }));
+            }
+            
+            ModuleStatistics total = new ModuleStatistics();
+            
+            for (Future<ModuleStatistics> future : futures)
+            {
+                try
+                {
+                    total.merge(future.get());
+                }
+                catch (ExecutionException ex)
+                {
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+            
+            return total;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds one module to the statistics, following the same stream layout as
+     * {@link SoundPlayerModule#load} without building notes.
+     */
+    public void scan( ByteBuffer module )
+    {
+        module = module.duplicate();
+        
+        if (module.remaining() < 3)
+            throw new IllegalStateException("module is truncated");
+        
+        module.get();  // delay
+        module.get();
+        int flags = module.get() & 0xff;
+        
+        if ((flags & 0x0f) == 0 || (flags & ~0x0f) != 0)
+            throw new IllegalStateException("module has invalid flags");
+        
+        // scan into local histograms first so a failed scan doesn't count
+        long[] effects = new long[256];
+        long[] semitones = new long[256];
+        long[] samples = new long[256];
+        long[] delays = new long[delayCounts.length];
+        
+        int[] voiceRowCounts = new int[4];
+        
+        int ended = 0;
+        while ((ended & flags & 0x0f) != (flags & 0x0f))
+        {
+            if (module.remaining() < 4 * 3)
+                throw new IllegalStateException("module is truncated");
+            
+            for (int v = 0; v < 4; ++v)
+            {
+                int semitone = module.get() & 0xff;
+                int sample = module.get() & 0xff;
+                int effect = module.get() & 0xff;
+                
+                if ((ended & (1 << v)) != 0)
+                    continue;
+                
+                effects[effect] += 1;
+                semitones[semitone] += 1;
+                if (semitone != 0)
+                    samples[sample] += 1;
+                
+                voiceRowCounts[v] += 1;
+                
+                if (effect >= 0x57 && effect <= 0x88)
+                {
+                    delays[effect - 0x57] += 1;
+                    voiceRowCounts[v] += effect - 0x57;
+                }
+                else if (effect == 0xde)
+                {
+                    ended |= 1 << v;
+                }
+            }
+        }
+        
+        add(effectCounts, effects);
+        add(semitoneCounts, semitones);
+        add(sampleCounts, samples);
+        add(delayCounts, delays);
+        
+        voiceMaskCounts[flags & 0x0f] += 1;
+        
+        for (int v = 0; v < 4; ++v)
+            if ((flags & (1 << v)) != 0)
+                addRowCount(voiceRowCounts[v], 1);
+        
+        moduleCount += 1;
+    }
+
+    public void merge( ModuleStatistics other )
+    {
+        moduleCount += other.moduleCount;
+        failedCount += other.failedCount;
+        
+        add(effectCounts, other.effectCounts);
+        add(semitoneCounts, other.semitoneCounts);
+        add(sampleCounts, other.sampleCounts);
+        add(delayCounts, other.delayCounts);
+        add(voiceMaskCounts, other.voiceMaskCounts);
+        
+        for (Map.Entry<Integer, Long> entry : other.rowCounts.entrySet())
+            addRowCount(entry.getKey(), entry.getValue());
+    }
+
+    public long getModuleCount()
+    {
+        return moduleCount;
+    }
+
+    public long getFailedCount()
+    {
+        return failedCount;
+    }
+
+    public long getEffectCount( int effect )
+    {
+        return effectCounts[effect];
+    }
+
+    public void report( PrintStream out )
+    {
+        out.printf("modules: %d\n", moduleCount);
+        out.printf("failed:  %d\n", failedCount);
+        
+        out.println();
+        out.println("effect  count       translatable");
+        for (int i = 0; i < effectCounts.length; ++i)
+            if (effectCounts[i] != 0)
+                out.printf("%02X      %-11d %s\n", i, effectCounts[i], SoundPlayerModule.isEffectTranslatable(i) ? "yes" : "no");
+        
+        out.println();
+        out.println("semitone  count");
+        for (int i = 0; i < semitoneCounts.length; ++i)
+            if (semitoneCounts[i] != 0)
+                out.printf("%-9d %d\n", i, semitoneCounts[i]);
+        
+        out.println();
+        out.println("sample  count");
+        for (int i = 0; i < sampleCounts.length; ++i)
+            if (sampleCounts[i] != 0)
+                out.printf("%-7d %d\n", i, sampleCounts[i]);
+        
+        out.println();
+        out.println("delay  count");
+        for (int i = 0; i < delayCounts.length; ++i)
+            if (delayCounts[i] != 0)
+                out.printf("%-6d %d\n", i, delayCounts[i]);
+        
+        out.println();
+        out.println("voices  count");
+        for (int i = 0; i < voiceMaskCounts.length; ++i)
+            if (voiceMaskCounts[i] != 0)
+                out.printf("%s    %d\n", StringUtils.reverse(StringUtils.leftPad(Integer.toBinaryString(i), 4, '0')), voiceMaskCounts[i]);
+        
+        out.println();
+        out.println("rows    voices");
+        for (Map.Entry<Integer, Long> entry : rowCounts.entrySet())
+            out.printf("%-7d %d\n", entry.getKey(), entry.getValue());
+    }
+
+    private void addRowCount( int rowCount, long count )
+    {
+        Long oldCount = rowCounts.get(rowCount);
+        
+        rowCounts.put(rowCount, oldCount == null ? count : oldCount + count);
+    }
+
+    private static void add( long[] counts, long[] otherCounts )
+    {
+        for (int i = 0; i < counts.length; ++i)
+            counts[i] += otherCounts[i];
+    }
+}
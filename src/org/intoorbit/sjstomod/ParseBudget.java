@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+/**
+ * Limits on how much of a file the parsers will read and how much they will
+ * allocate for it, so that truncated or hostile files fail early rather than
+ * exhausting the heap.
+ *
+ * @author mindless
+ */
+public class ParseBudget
+{
+    /**
+     * Generous limits for the files that shipped with the games.
+     */
+    public static final ParseBudget standard = new ParseBudget(16 << 20, 1 << 20, 1024);
+
+    public static final ParseBudget unlimited = new ParseBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final int maxBytes;
+
+    private final int maxRows;
+
+    private final int maxChunks;
+
+    /**
+     * @param maxBytes the maximum size of a file
+     * @param maxRows the maximum number of rows in a voice of a module
+     * @param maxChunks the maximum number of chunks in an IFF file
+     */
+    public ParseBudget( int maxBytes, int maxRows, int maxChunks )
+    {
+        if (maxBytes < 0 || maxRows < 0 || maxChunks < 0)
+            throw new IllegalArgumentException("limit is negative");
+        
+        this.maxBytes = maxBytes;
+        this.maxRows = maxRows;
+        this.maxChunks = maxChunks;
+    }
+
+    public int getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public int getMaxRows()
+    {
+        return maxRows;
+    }
+
+    public int getMaxChunks()
+    {
+        return maxChunks;
+    }
+
+    /**
+     * @throws ParseBudgetExceededException if a file of the given size is
+     *         larger than the budget allows
+     */
+    public void checkBytes( long bytes ) throws ParseBudgetExceededException
+    {
+        if (bytes > maxBytes)
+            throw new ParseBudgetExceededException(String.format("file exceeds %d bytes", maxBytes));
+    }
+
+    void checkRows( long rows ) throws ParseBudgetExceededException
+    {
+        if (rows > maxRows)
+            throw new ParseBudgetExceededException(String.format("voice exceeds %d rows", maxRows));
+    }
+
+    void checkChunks( long chunks ) throws ParseBudgetExceededException
+    {
+        if (chunks > maxChunks)
+            throw new ParseBudgetExceededException(String.format("file exceeds %d chunks", maxChunks));
+    }
+}
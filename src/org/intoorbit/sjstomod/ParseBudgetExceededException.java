@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a file being parsed exceeds its {@link ParseBudget}.
+ *
+ * @author mindless
+ */
+public class ParseBudgetExceededException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public ParseBudgetExceededException( String message )
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Chooses where to split a sequence of translated rows into patterns.
+ *
+ * The default layout cuts a pattern every 64 rows.  Repeated phrases that
+ * don't line up with those cuts are stored as distinct patterns, so the
+ * optimizer also tries shortened (D00-terminated) patterns that shift the
+ * alignment of the patterns following them, and keeps whichever layout needs
+ * the fewest unique patterns.
+ *
+ * Candidate layouts are scored by hashing row sequences, so the score of a
+ * layout is only approximate when hashes collide; the patterns that are
+ * eventually built are still deduplicated by equality.
+ *
+ * Given a {@link LayoutMemo}, the optimizer looks up the hash of the whole
+ * row sequence before searching and remembers the layout it chooses, so
+ * rows that were laid out before, in this run or an earlier one, aren't
+ * searched again.
+ *
+ * @author mindless
+ */
+public class PatternLayoutOptimizer
+{
+    private static final int patternRowCount = 64;
+
+    private static final int maxPatternTableSize = 128;
+
+    private static final long hashBase = 0x100000001b3L;
+
+    private final long timeBudgetMillis;
+
+    private final long timeBudgetNanos;
+
+    private final LayoutMemo memo;
+
+    /**
+     * @param timeBudgetMillis the time to spend searching for a better layout,
+     *        or 0 to always use the default layout
+     */
+    public PatternLayoutOptimizer( long timeBudgetMillis )
+    {
+        this(timeBudgetMillis, null);
+    }
+
+    /**
+     * @param timeBudgetMillis the time to spend searching for a better layout,
+     *        or 0 to always use the default layout
+     * @param memo the memo of earlier layouts, or null to always search
+     */
+    public PatternLayoutOptimizer( long timeBudgetMillis, LayoutMemo memo )
+    {
+        if (timeBudgetMillis < 0)
+            throw new IllegalArgumentException("timeBudgetMillis is negative");
+
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.timeBudgetNanos = timeBudgetMillis * 1000000;
+        this.memo = memo;
+    }
+
+    /**
+     * @return the lengths of the consecutive patterns that the rows should be
+     *         split into; a pattern shorter than 64 rows must be terminated
+     *         with a pattern break
+     */
+    public int[] optimize( ProtrackerModule.Note[][] rows )
+    {
+        return optimize(rows, CancellationToken.none);
+    }
+
+    /**
+     * @param token ends the search early, with the best layout found so far,
+     *        once it is cancelled
+     * @return the lengths of the consecutive patterns that the rows should be
+     *         split into; a pattern shorter than 64 rows must be terminated
+     *         with a pattern break
+     */
+    public int[] optimize( ProtrackerModule.Note[][] rows, CancellationToken token )
+    {
+        int defaultPatternCount = (rows.length + patternRowCount - 1) / patternRowCount;
+
+        int[] defaultLayout = new int[defaultPatternCount];
+        Arrays.fill(defaultLayout, patternRowCount);
+
+        if (timeBudgetNanos == 0 || rows.length <= patternRowCount)
+            return defaultLayout;
+
+        Search search = new Search(rows);
+
+        long rowsHash = search.getRowsHash();
+
+        if (memo != null)
+        {
+            int[] layout = memo.get(rowsHash, rows.length, timeBudgetMillis);
+
+            if (layout != null && search.isValid(layout))
+                return layout;
+        }
+
+        long deadline = System.nanoTime() + timeBudgetNanos;
+
+        int[] bestLayout = defaultLayout;
+        long bestScore = search.score(bestLayout);
+
+        // alternative alignments of the whole module
+        for (int phase = 1; phase < patternRowCount && System.nanoTime() < deadline && !token.isCancelled(); ++phase)
+        {
+            int[] layout = search.layout(0, phase);
+
+            if (layout == null)
+                continue;
+
+            long score = search.score(layout);
+
+            if (score < bestScore)
+            {
+                bestScore = score;
+                bestLayout = layout;
+            }
+        }
+
+        // realignment part-way through the module
+        int[] baseLayout = bestLayout;
+
+        nextSplit:
+        for (int i = 1; i < baseLayout.length; ++i)
+        {
+            int splitRow = 0;
+            for (int j = 0; j < i; ++j)
+                splitRow += baseLayout[j];
+
+            for (int shift = 1; shift < patternRowCount; ++shift)
+            {
+                if (System.nanoTime() >= deadline || token.isCancelled())
+                    break nextSplit;
+
+                int[] tail = search.layout(splitRow, shift);
+
+                if (tail == null)
+                    continue;
+
+                int[] layout = Arrays.copyOf(baseLayout, i + tail.length);
+                System.arraycopy(tail, 0, layout, i, tail.length);
+
+                long score = search.score(layout);
+
+                if (score < bestScore)
+                {
+                    bestScore = score;
+                    bestLayout = layout;
+                }
+            }
+        }
+
+        // a search cut short by cancellation isn't the layout for this budget
+        if (memo != null && !token.isCancelled())
+        {
+            try
+            {
+                memo.put(rowsHash, rows.length, timeBudgetMillis, bestLayout);
+            }
+            catch (IOException ex)
+            {
+                // the memo is only a cache
+            }
+        }
+
+        return bestLayout;
+    }
+
+    static boolean isPatternBreakRow( ProtrackerModule.Note[] row )
+    {
+        for (ProtrackerModule.Note note : row)
+            if (note != null && isPatternBreakEffect(note.getEffect()))
+                return true;
+
+        return false;
+    }
+
+    static boolean isPatternBreakEffect( int effect )
+    {
+        return (effect & 0xf00) == 0xb00 || (effect & 0xf00) == 0xd00;
+    }
+
+    private static class Search
+    {
+        private final ProtrackerModule.Note[][] rows;
+
+        private final long[] prefixHashes;
+
+        private final long[] basePowers;
+
+        private final boolean[] breakable;
+
+        private Search( ProtrackerModule.Note[][] rows )
+        {
+            this.rows = rows;
+
+            int paddedRowCount = rows.length + patternRowCount;
+
+            prefixHashes = new long[paddedRowCount + 1];
+            basePowers = new long[patternRowCount + 1];
+            breakable = new boolean[rows.length];
+
+            basePowers[0] = 1;
+            for (int i = 1; i <= patternRowCount; ++i)
+                basePowers[i] = basePowers[i - 1] * hashBase;
+
+            for (int r = 0; r < paddedRowCount; ++r)
+            {
+                long rowHash = r < rows.length ? hashRow(rows[r]) : hashRow(null);
+
+                prefixHashes[r + 1] = prefixHashes[r] * hashBase + rowHash;
+            }
+
+            for (int r = 0; r < rows.length; ++r)
+            {
+                if (isPatternBreakRow(rows[r]))
+                {
+                    breakable[r] = true;
+                    continue;
+                }
+
+                for (ProtrackerModule.Note note : rows[r])
+                    if (note == null || note.getEffect() == 0)
+                        breakable[r] = true;
+            }
+        }
+
+        /**
+         * @return a hash of all of the rows
+         */
+        private long getRowsHash()
+        {
+            return prefixHashes[rows.length];
+        }
+
+        /**
+         * @return whether the layout covers the rows exactly, with room for a
+         *         pattern break at the end of every short pattern
+         */
+        private boolean isValid( int[] layout )
+        {
+            int startRow = 0;
+            for (int length : layout)
+            {
+                if (startRow >= rows.length || length <= 0 || length > patternRowCount)
+                    return false;
+
+                if (length < patternRowCount && (startRow + length > rows.length || !breakable[startRow + length - 1]))
+                    return false;
+
+                startRow += length;
+            }
+
+            return startRow >= rows.length;
+        }
+
+        /**
+         * @return the default layout of the rows following startRow, preceded
+         *         by a pattern of the given length, or null if a pattern break
+         *         cannot be placed at the end of that pattern
+         */
+        private int[] layout( int startRow, int firstLength )
+        {
+            int breakRow = startRow + firstLength - 1;
+
+            if (breakRow >= rows.length || !breakable[breakRow])
+                return null;
+
+            int remainingRowCount = rows.length - (startRow + firstLength);
+
+            int[] layout = new int[1 + (remainingRowCount + patternRowCount - 1) / patternRowCount];
+            Arrays.fill(layout, patternRowCount);
+            layout[0] = firstLength;
+
+            return layout;
+        }
+
+        private long score( int[] layout )
+        {
+            if (layout.length > maxPatternTableSize)
+                return Long.MAX_VALUE;
+
+            HashSet<Long> patternHashes = new HashSet<>();
+
+            int startRow = 0;
+            for (int length : layout)
+            {
+                long hash = prefixHashes[startRow + length] - prefixHashes[startRow] * basePowers[length];
+
+                patternHashes.add(mix(hash + length));
+
+                startRow += length;
+            }
+
+            // fewest unique patterns, then shortest pattern table
+            return (long)patternHashes.size() << 8 | layout.length;
+        }
+
+        private static long hashRow( ProtrackerModule.Note[] row )
+        {
+            long hash = 0;
+
+            for (int v = 0; v < 4; ++v)
+            {
+                ProtrackerModule.Note note = row == null ? null : row[v];
+
+                long cell = note == null ?
+                        0 :
+                        (long)note.getPeriod() << 20 | note.getSample() << 12 | note.getEffect();
+
+                hash = hash * 31 + cell;
+            }
+
+            return mix(hash);
+        }
+
+        private static long mix( long hash )
+        {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+/**
+ * The finetune and semitone transpose that make a sample recorded at a
+ * given rate play at its own pitch in Protracker, so that it needn't be
+ * resampled.
+ *
+ * Without pitch matching, a sample is played as though it were recorded at
+ * the rate Protracker plays C-2 on a PAL Amiga.
+ *
+ * @author mindless
+ */
+public class PitchMatch
+{
+    // PAL clock / (2 * C-2 period)
+    private static final double referenceRate = 7093789.2 / (2 * 428);
+
+    /**
+     * The rate a sample is played at without pitch matching, rounded.
+     */
+    public static final int referenceSamplesPerSecond = (int)Math.round(referenceRate);
+
+    public static final PitchMatch none = new PitchMatch(0, 0);
+
+    /**
+     * @return the closest match to the given rate, or no change if the rate
+     *         is unknown
+     */
+    public static PitchMatch forRate( int samplesPerSecond )
+    {
+        if (samplesPerSecond <= 0)
+            return none;
+        
+        // in eighths of a semitone, the step of finetune
+        long offset = Math.round(96 * Math.log(samplesPerSecond / referenceRate) / Math.log(2));
+        
+        int transpose = (int)Math.floor((offset + 4) / 8.0);
+        int fineTune = (int)(offset - transpose * 8L);
+        
+        return new PitchMatch(transpose, fineTune);
+    }
+
+    private final int transpose;
+
+    private final int fineTune;
+
+    private PitchMatch( int transpose, int fineTune )
+    {
+        this.transpose = transpose;
+        this.fineTune = fineTune;
+    }
+
+    /**
+     * @return the semitones to add to notes played with the sample
+     */
+    public int getTranspose()
+    {
+        return transpose;
+    }
+
+    /**
+     * @return the finetune of the sample, from -4 to 3
+     */
+    public int getFineTune()
+    {
+        return fineTune;
+    }
+}
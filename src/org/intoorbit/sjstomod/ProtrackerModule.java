@@ -1,4 +1,4 @@
-/* 
+/*
  * Copyright (c) 2014 Carl Reinke
  *
  * This Source Code Form is subject to the terms of the Mozilla Public
@@ -7,14 +7,23 @@
  */
 package org.intoorbit.sjstomod;
 
-import org.intoorbit.sjstomod.utils.ArrayUtils;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 /**
+ * An immutable Protracker module.  Modules, samples, patterns and notes can be
+ * shared freely between threads; modified copies are made with the builders
+ * and share everything that they don't change.
  *
  * @author mindless
  */
@@ -29,35 +38,359 @@ public class ProtrackerModule
         107, 101, 95, 90, 85, 80, 75, 71, 67, 63, 60, 56,
         };
 
+    private static final int headerSize = 20 + 31 * 30 + 2 + 128 + 4;
+
+    private static final int saveChunkSize = 64 * 1024;
+
+    // Protracker's own tables for finetunes -8 to 7, covering the three octaves
+    // that it plays; indexed by finetune + 8
+    private static final int[][] protrackerPeriodTables = new int[][]
+        {
+        {  // -8
+            907, 856, 808, 762, 720, 678, 640, 604, 570, 538, 508, 480,
+            453, 428, 404, 381, 360, 339, 320, 302, 285, 269, 254, 240,
+            226, 214, 202, 190, 180, 170, 160, 151, 143, 135, 127, 120,
+        },
+        {  // -7
+            900, 850, 802, 757, 715, 675, 636, 601, 567, 535, 505, 477,
+            450, 425, 401, 379, 357, 337, 318, 300, 284, 268, 253, 238,
+            225, 212, 200, 189, 179, 169, 159, 150, 142, 134, 126, 119,
+        },
+        {  // -6
+            894, 844, 796, 752, 709, 670, 632, 597, 563, 532, 502, 474,
+            447, 422, 398, 376, 355, 335, 316, 298, 282, 266, 251, 237,
+            223, 211, 199, 188, 177, 167, 158, 149, 141, 133, 125, 118,
+        },
+        {  // -5
+            887, 838, 791, 746, 704, 665, 628, 592, 559, 528, 498, 470,
+            444, 419, 395, 373, 352, 332, 314, 296, 280, 264, 249, 235,
+            222, 209, 198, 187, 176, 166, 157, 148, 140, 132, 125, 118,
+        },
+        {  // -4
+            881, 832, 785, 741, 699, 660, 623, 588, 555, 524, 494, 467,
+            441, 416, 392, 370, 350, 330, 312, 294, 278, 262, 247, 233,
+            220, 208, 196, 185, 175, 165, 156, 147, 139, 131, 123, 117,
+        },
+        {  // -3
+            875, 826, 779, 736, 694, 655, 619, 584, 551, 520, 491, 463,
+            437, 413, 390, 368, 347, 328, 309, 292, 276, 260, 245, 232,
+            219, 206, 195, 184, 174, 164, 155, 146, 138, 130, 123, 116,
+        },
+        {  // -2
+            868, 820, 774, 730, 689, 651, 614, 580, 547, 516, 487, 460,
+            434, 410, 387, 365, 345, 325, 307, 290, 274, 258, 244, 230,
+            217, 205, 193, 183, 172, 163, 154, 145, 137, 129, 122, 115,
+        },
+        {  // -1
+            862, 814, 768, 725, 684, 646, 610, 575, 543, 513, 484, 457,
+            431, 407, 384, 363, 342, 323, 305, 288, 272, 256, 242, 228,
+            216, 203, 192, 181, 171, 161, 152, 144, 136, 128, 121, 114,
+        },
+        {  // 0
+            856, 808, 762, 720, 678, 640, 604, 570, 538, 508, 480, 453,
+            428, 404, 381, 360, 339, 320, 302, 285, 269, 254, 240, 226,
+            214, 202, 190, 180, 170, 160, 151, 143, 135, 127, 120, 113,
+        },
+        {  // 1
+            850, 802, 757, 715, 674, 637, 601, 567, 535, 505, 477, 450,
+            425, 401, 379, 357, 337, 318, 300, 284, 268, 253, 239, 225,
+            213, 201, 189, 179, 169, 159, 150, 142, 134, 126, 119, 113,
+        },
+        {  // 2
+            844, 796, 752, 709, 670, 632, 597, 563, 532, 502, 474, 447,
+            422, 398, 376, 355, 335, 316, 298, 282, 266, 251, 237, 224,
+            211, 199, 188, 177, 167, 158, 149, 141, 133, 125, 118, 112,
+        },
+        {  // 3
+            838, 791, 746, 704, 665, 628, 592, 559, 528, 498, 470, 444,
+            419, 395, 373, 352, 332, 314, 296, 280, 264, 249, 235, 222,
+            209, 198, 187, 176, 166, 157, 148, 140, 132, 125, 118, 111,
+        },
+        {  // 4
+            832, 785, 741, 699, 660, 623, 588, 555, 524, 495, 467, 441,
+            416, 392, 370, 350, 330, 312, 294, 278, 262, 247, 233, 220,
+            208, 196, 185, 175, 165, 156, 147, 139, 131, 124, 117, 110,
+        },
+        {  // 5
+            826, 779, 736, 694, 655, 619, 584, 551, 520, 491, 463, 437,
+            413, 390, 368, 347, 328, 309, 292, 276, 260, 245, 232, 219,
+            206, 195, 184, 174, 164, 155, 146, 138, 130, 123, 116, 109,
+        },
+        {  // 6
+            820, 774, 730, 689, 651, 614, 580, 547, 516, 487, 460, 434,
+            410, 387, 365, 345, 325, 307, 290, 274, 258, 244, 230, 217,
+            205, 193, 183, 172, 163, 154, 145, 137, 129, 122, 115, 109,
+        },
+        {  // 7
+            814, 768, 725, 684, 646, 610, 575, 543, 513, 484, 457, 431,
+            407, 384, 363, 342, 323, 305, 288, 272, 256, 242, 228, 216,
+            204, 192, 181, 171, 161, 152, 144, 136, 128, 121, 114, 108,
+        },
+        };
+
+    // periodTable extends Protracker's by an octave at each end
+    private static final int protrackerFirstIndex = 12;
+
+    // finetunes -8 to 7 in eighths of a semitone, over all of periodTable
+    private static final int[][] fineTunePeriodTables = new int[16][];
+
+    // the index in periodTable of each period, or -1
+    private static final int[] periodIndices = new int[periodTable[0] + 1];
+
+    static
+    {
+        for (int fineTune = -8; fineTune <= 7; ++fineTune)
+        {
+            int[] protrackerPeriods = protrackerPeriodTables[fineTune + 8];
+            int protrackerEnd = protrackerFirstIndex + protrackerPeriods.length;
+            
+            int[] periods = new int[periodTable.length];
+            
+            // the extra octaves double and halve Protracker's, as periodTable does
+            for (int i = 0; i < periods.length; ++i)
+            {
+                if (i < protrackerFirstIndex)
+                    periods[i] = protrackerPeriods[i + 12 - protrackerFirstIndex] * 2;
+                else if (i < protrackerEnd)
+                    periods[i] = protrackerPeriods[i - protrackerFirstIndex];
+                else
+                    periods[i] = protrackerPeriods[i - 12 - protrackerFirstIndex] / 2;
+            }
+            
+            fineTunePeriodTables[fineTune + 8] = periods;
+        }
+        
+        // finetune 0 is exactly the hand-tuned table
+        fineTunePeriodTables[8] = periodTable;
+        
+        Arrays.fill(periodIndices, -1);
+        for (int i = 0; i < periodTable.length; ++i)
+            periodIndices[periodTable[i]] = i;
+    }
+
+    private static final String[] noteNames = new String[] { "C-", "C#", "D-", "D#", "E-", "F-", "F#", "G-", "G#", "A-", "A#", "B-" };
+
     public static int getPeriod( int i )
     {
         return periodTable[i];
     }
-    
-    private String title = "";
-    
-    public final Sample[] samples = new Sample[31];
-    
-    public final ArrayList<Integer> patternTable = new ArrayList<>();
 
-    private int repeatIndex;
+    /**
+     * @return the period that a player uses for the given note index when
+     *         playing a sample with the given finetune
+     */
+    public static int getPeriod( int fineTune, int i )
+    {
+        return fineTunePeriodTables[fineTune + 8][i];
+    }
+
+    public static int getPeriodCount()
+    {
+        return periodTable.length;
+    }
+
+    /**
+     * @return the note index of a finetune 0 period, or -1 if it isn't one
+     */
+    public static int getPeriodIndex( int period )
+    {
+        return period < 0 || period >= periodIndices.length ? -1 : periodIndices[period];
+    }
+
+    public static ProtrackerModule load( ByteBuffer buffer ) throws IOException
+    {
+        return load(buffer, ParseBudget.standard);
+    }
+
+    /**
+     * Reads an M.K. module.  Sample bodies are slices of the buffer rather
+     * than copies, so the contents of the buffer must not change afterwards.
+     * 
+     * Modules written by {@link #save} are read back exactly, so that saving
+     * them again produces the same bytes, except that a sample with an odd
+     * length is stored with a word count that drops its last byte, so it
+     * cannot be read back.  Order table entries beyond the song length are
+     * not kept.
+     */
+    public static ProtrackerModule load( ByteBuffer buffer, ParseBudget budget ) throws IOException
+    {
+        buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        
+        budget.checkBytes(buffer.remaining());
+        
+        if (buffer.remaining() < headerSize)
+            throw new EOFException();
+        
+        if (buffer.get(1080) != 'M' || buffer.get(1081) != '.' || buffer.get(1082) != 'K' || buffer.get(1083) != '.')
+            throw new IllegalStateException("not an M.K. module");
+        
+        try
+        {
+            Builder builder = new Builder();
+            
+            builder.setTitle(getString(buffer, 0, 20));
+            
+            int[] sampleLengths = new int[31];
+            
+            Sample.Builder[] samples = new Sample.Builder[31];
+            
+            for (int s = 0; s < 31; ++s)
+            {
+                int offset = 20 + s * 30;
+                
+                // save writes an empty header for a missing sample
+                boolean empty = true;
+                for (int i = 0; i < 30; ++i)
+                    if (buffer.get(offset + i) != 0)
+                        empty = false;
+                
+                if (empty)
+                    continue;
+                
+                sampleLengths[s] = (buffer.getShort(offset + 22) & 0xffff) * 2;
+                
+                // finetune is sometimes stored as an unsigned nibble
+                int fineTune = buffer.get(offset + 24);
+                if (fineTune >= 8 && fineTune <= 15)
+                    fineTune -= 16;
+                
+                samples[s] = new Sample.Builder()
+                        .setName(getString(buffer, offset, 22))
+                        .setFineTune(fineTune)
+                        .setVolume(buffer.get(offset + 25))
+                        .setRepeatOffset((buffer.getShort(offset + 26) & 0xffff) * 2)
+                        .setRepeatLength((buffer.getShort(offset + 28) & 0xffff) * 2);
+            }
+            
+            int songLength = buffer.get(950) & 0xff;
+            
+            if (songLength > 128)
+                throw new IllegalStateException("patternTable is too long");
+            
+            builder.setRepeatIndex(buffer.get(951) & 0xff);
+            
+            // every entry of the order table counts towards the patterns
+            // stored, even those beyond the song length
+            int patternCount = 0;
+            
+            for (int i = 0; i < 128; ++i)
+            {
+                int patternIndex = buffer.get(952 + i) & 0xff;
+                
+                if (i < songLength)
+                    builder.patternTable.add(patternIndex);
+                
+                patternCount = Math.max(patternCount, patternIndex + 1);
+            }
+            
+            if (headerSize + (long)patternCount * 64 * 4 * 4 > buffer.remaining())
+                throw new EOFException();
+            
+            for (int p = 0; p < patternCount; ++p)
+            {
+                Pattern.Builder pattern = new Pattern.Builder();
+                
+                for (int r = 0; r < 64; ++r)
+                {
+                    for (int v = 0; v < 4; ++v)
+                    {
+                        int offset = headerSize + ((p * 64 + r) * 4 + v) * 4;
+                        
+                        int b0 = buffer.get(offset) & 0xff;
+                        int b1 = buffer.get(offset + 1) & 0xff;
+                        int b2 = buffer.get(offset + 2) & 0xff;
+                        int b3 = buffer.get(offset + 3) & 0xff;
+                        
+                        if ((b0 | b1 | b2 | b3) != 0)
+                            pattern.setNote(r, v, new Note((b0 & 0x0f) << 8 | b1, (b0 & 0xf0) | b2 >> 4, (b2 & 0x0f) << 8 | b3));
+                    }
+                }
+                
+                builder.appendPattern(pattern.build());
+            }
+            
+            int bodyOffset = headerSize + patternCount * 64 * 4 * 4;
+            
+            for (int s = 0; s < 31; ++s)
+            {
+                if (samples[s] == null)
+                    continue;
+                
+                if (sampleLengths[s] > buffer.remaining() - bodyOffset)
+                    throw new EOFException();
+                
+                ByteBuffer body = buffer.duplicate();
+                body.position(bodyOffset);
+                body.limit(bodyOffset + sampleLengths[s]);
+                
+                builder.setSample(s, samples[s].setBody(body).build());
+                
+                bodyOffset += sampleLengths[s];
+            }
+            
+            return builder.build();
+        }
+        catch (IllegalArgumentException ex)
+        {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    private static String getString( ByteBuffer buffer, int offset, int length )
+    {
+        StringBuilder string = new StringBuilder(length);
+        
+        for (int i = 0; i < length; ++i)
+        {
+            int c = buffer.get(offset + i) & 0xff;
+            
+            if (c == 0)
+                break;
+            
+            string.append((char)c);
+        }
+        
+        return string.toString();
+    }
+
+    private final String title;
+
+    private final Sample[] samples;
+
+    private final List<Integer> patternTable;
+
+    private final int repeatIndex;
+
+    private final List<Pattern> patterns;
 
-    public final ArrayList<Pattern> patterns = new ArrayList<>();
+    private ProtrackerModule( Builder builder )
+    {
+        title = builder.title;
+        samples = builder.samples.clone();
+        patternTable = Collections.unmodifiableList(new ArrayList<>(builder.patternTable));
+        repeatIndex = builder.repeatIndex;
+        patterns = Collections.unmodifiableList(new ArrayList<>(builder.patterns));
+        
+        validate();
+    }
 
     public String getTitle()
     {
         return title;
     }
 
-    public void setTitle( String title )
+    /**
+     * @param i the zero-based sample index
+     * @return the sample, or null if the slot is unused
+     */
+    public Sample getSample( int i )
     {
-        if (title == null)
-            throw new IllegalArgumentException("title is null");
-
-        if (title.length() > 20)
-            title = title.substring(0, 20);
+        return samples[i];
+    }
 
-        this.title = title;
+    public List<Integer> getPatternTable()
+    {
+        return patternTable;
     }
 
     public int getRepeatIndex()
@@ -65,18 +398,13 @@ public class ProtrackerModule
         return repeatIndex;
     }
 
-    public void setRepeatIndex( int repeatIndex )
+    public List<Pattern> getPatterns()
     {
-        if (repeatIndex < 0 || repeatIndex > 127)
-            throw new IllegalArgumentException("repeatIndex is out-of-range");
-        
-        this.repeatIndex = repeatIndex;
+        return patterns;
     }
-    
+
     public void dump()
     {
-        String[] noteNames = new String[] { "C-", "C#", "D-", "D#", "E-", "F-", "F#", "G-", "G#", "A-", "A#", "B-" };
-        
         for (Pattern pattern : patterns)
         {
             for (Note[] row : pattern.notes)
@@ -88,44 +416,280 @@ public class ProtrackerModule
                         System.out.print(" | ... .. .. ...");
                         continue;
                     }
+                    
+                    System.out.printf(" | %s", note);
+                }
+                
+                System.out.println();
+            }
+        }
+    }
 
-                    String noteNotation;
-                    if (note.period == 0)
-                    {
-                        noteNotation = "...";
-                    }
-                    else
+    /**
+     * Trims sample bytes that can never be played and merges samples that
+     * have identical bodies and settings.
+     *
+     * @return the compacted module
+     */
+    public ProtrackerModule compactSamples()
+    {
+        Builder builder = new Builder(this);
+        
+        int[] sampleMap = new int[1 + 31];
+        
+        boolean merged = false;
+        
+        for (int s = 0; s < 31; ++s)
+        {
+            sampleMap[1 + s] = 1 + s;
+            
+            Sample sample = samples[s];
+            
+            if (sample == null)
+                continue;
+            
+            sample = sample.trim();
+            
+            builder.setSample(s, sample);
+            
+            for (int o = 0; o < s; ++o)
+            {
+                if (builder.samples[o] != null && builder.samples[o].isEquivalent(sample))
+                {
+                    sampleMap[1 + s] = 1 + o;
+                    builder.setSample(s, null);
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        
+        if (merged)
+        {
+            builder.patterns.clear();
+            builder.patternIndices.clear();
+            builder.patternTable.clear();
+            
+            int[] patternMap = new int[patterns.size()];
+            
+            for (int i = 0; i < patterns.size(); ++i)
+                patternMap[i] = builder.addPattern(patterns.get(i).remapSamples(sampleMap));
+            
+            for (int patternIndex : patternTable)
+                builder.addPosition(patternMap[patternIndex]);
+        }
+        
+        return builder.build();
+    }
+
+    /**
+     * Packs several modules into one, each song starting at its own
+     * position.  Equivalent samples share a slot, equal patterns are stored
+     * once, position jumps are moved along with their songs, and the exit
+     * row of the last position of each song gets a position jump back to the
+     * repeat position of the song, unless it already has one.
+     *
+     * @param songPositions receives the first position of each song
+     * @return the packed module
+     * @throws UnsupportedOperationException if the songs have more than 31
+     *         distinct samples or 128 positions between them, or a song has
+     *         no room for its loop
+     */
+    public static ProtrackerModule pack( String title, List<ProtrackerModule> songs, List<Integer> songPositions ) throws UnsupportedOperationException
+    {
+        Builder builder = new Builder().setTitle(title);
+        
+        int sampleCount = 0;
+        
+        for (ProtrackerModule song : songs)
+        {
+            int songPosition = builder.getPositionCount();
+            
+            if (songPosition + song.patternTable.size() > 128)
+                throw new UnsupportedOperationException("too many positions");
+            
+            int[] sampleMap = new int[1 + 31];
+            
+            nextSample:
+            for (int s = 0; s < 31; ++s)
+            {
+                Sample sample = song.samples[s];
+                
+                if (sample == null)
+                    continue;
+                
+                for (int o = 0; o < sampleCount; ++o)
+                {
+                    if (builder.samples[o].isEquivalent(sample))
                     {
-                        int noteIndex = ArrayUtils.binarySearchReverse(periodTable, note.period);
-                        int octave = noteIndex / 12;
-                        noteNotation = String.format("%s%d", noteNames[noteIndex - octave * 12], octave + 3);
+                        sampleMap[1 + s] = 1 + o;
+                        continue nextSample;
                     }
-
-                    String sampleNotation = note.sample == 0 ?
-                            ".." :
-                            String.format("%02d", note.sample);
-
-                    String effectNotation = note.effect == 0 ?
-                            "..." :
-                            String.format("%03X", note.effect);
+                }
+                
+                if (sampleCount == 31)
+                    throw new UnsupportedOperationException("too many samples");
+                
+                builder.setSample(sampleCount, sample);
+                sampleMap[1 + s] = 1 + sampleCount;
+                ++sampleCount;
+            }
+            
+            // patterns are added as positions first use them, so that every
+            // pattern is referenced and they are numbered in order of use
+            int[] patternMap = new int[song.patterns.size()];
+            Arrays.fill(patternMap, -1);
+            
+            for (int i = 0; i < song.patternTable.size(); ++i)
+            {
+                int patternIndex = song.patternTable.get(i);
                 
-                    System.out.printf(" | %s %s .. %s", noteNotation, sampleNotation, effectNotation);
+                // the last position may share its pattern with others, so it
+                // gets a copy with the loop
+                if (i == song.patternTable.size() - 1)
+                {
+                    int repeatPosition = songPosition + (song.repeatIndex < song.patternTable.size() ? song.repeatIndex : 0);
+                    
+                    Pattern pattern = song.patterns.get(patternIndex).remapSamples(sampleMap).movePositionJumps(songPosition);
+                    
+                    builder.addPosition(builder.addPattern(pattern.withLoop(repeatPosition)));
+                }
+                else
+                {
+                    if (patternMap[patternIndex] < 0)
+                        patternMap[patternIndex] = builder.addPattern(song.patterns.get(patternIndex).remapSamples(sampleMap).movePositionJumps(songPosition));
+                    
+                    builder.addPosition(patternMap[patternIndex]);
                 }
+            }
             
-                System.out.println();
+            songPositions.add(songPosition);
+        }
+        
+        return builder.build();
+    }
+
+    /**
+     * Amplifies sample bodies to full scale, less the given headroom, and
+     * reduces sample volumes and the Cxx effects of notes that play them to
+     * compensate.  Samples that share a body still share the amplified one.
+     *
+     * @param headroom the amplitude to keep free, from 0 to 127
+     * @return the normalized module
+     */
+    public ProtrackerModule normalizeSamples( int headroom )
+    {
+        if (headroom < 0 || headroom > 127)
+            throw new IllegalArgumentException("headroom is out-of-range");
+        
+        int targetPeak = 128 - headroom;
+        
+        Builder builder = new Builder(this);
+        
+        HashMap<ByteBuffer, ByteBuffer> amplifiedBodies = new HashMap<>();
+        
+        int[] samplePeaks = new int[1 + 31];
+        
+        boolean amplified = false;
+        
+        for (int s = 0; s < 31; ++s)
+        {
+            Sample sample = samples[s];
+            
+            if (sample == null)
+                continue;
+            
+            int peak = sample.getAnalysis().getPeak();
+            
+            if (peak == 0 || peak >= targetPeak)
+                continue;
+            
+            int volume = (sample.volume * peak + targetPeak / 2) / targetPeak;
+            
+            if (volume == 0)
+                continue;
+            
+            ByteBuffer amplifiedBody = amplifiedBodies.get(sample.body);
+            
+            if (amplifiedBody == null)
+            {
+                byte[] body = new byte[sample.body.limit()];
+                
+                for (int i = 0; i < body.length; ++i)
+                {
+                    int value = sample.body.get(i);
+                    
+                    int amplifiedValue = (value * targetPeak + (value < 0 ? -peak : peak) / 2) / peak;
+                    
+                    body[i] = (byte)Math.max(-128, Math.min(127, amplifiedValue));
+                }
+                
+                amplifiedBody = ByteBuffer.wrap(body).asReadOnlyBuffer();
+                amplifiedBodies.put(sample.body, amplifiedBody);
             }
+            
+            builder.setSample(s, new Sample.Builder(sample)
+                    .setBody(amplifiedBody)
+                    .setVolume(volume)
+                    .build());
+            
+            samplePeaks[1 + s] = peak;
+            amplified = true;
+        }
+        
+        if (amplified)
+        {
+            builder.patterns.clear();
+            builder.patternIndices.clear();
+            builder.patternTable.clear();
+            
+            int[] patternMap = new int[patterns.size()];
+            
+            for (int i = 0; i < patterns.size(); ++i)
+                patternMap[i] = builder.addPattern(patterns.get(i).scaleVolumeEffects(samplePeaks, targetPeak));
+            
+            for (int patternIndex : patternTable)
+                builder.addPosition(patternMap[patternIndex]);
         }
+        
+        return builder.build();
     }
 
     public void save( OutputStream outStream ) throws IOException
     {
-        validate();
+        save(Channels.newChannel(outStream), ByteBuffer.allocate(headerSize));
+        
+        outStream.flush();
+    }
+
+    /**
+     * Writes the module, encoding the header and patterns into buffer and
+     * writing sample bodies to the channel directly.
+     * 
+     * @param buffer a buffer of at least 1084 bytes, whose contents are
+     *        overwritten
+     * @return the number of bytes written
+     */
+    public long save( WritableByteChannel channel, ByteBuffer buffer ) throws IOException
+    {
+        return save(channel, buffer, CancellationToken.none);
+    }
+
+    /**
+     * Writes the module like {@link #save(WritableByteChannel, ByteBuffer)},
+     * checking the token before each pattern and each 64 KiB of sample body.
+     * A cancelled save leaves a partial module in the channel.
+     */
+    public long save( WritableByteChannel channel, ByteBuffer buffer, CancellationToken token ) throws IOException
+    {
+        if (buffer.capacity() < headerSize)
+            throw new IllegalArgumentException("buffer is too small");
         
-        DataOutputStream out = new DataOutputStream(outStream);
+        buffer.clear();
         
-        out.writeBytes(title);
-        for (int i = title.length(); i < 20; ++i)
-            out.writeByte(0);
+        long byteCount = 0;
+        
+        putString(buffer, title, 20);
         
         for (int s = 0; s < 31; ++s)
         {
@@ -134,29 +698,32 @@ public class ProtrackerModule
             if (sample == null)
                 sample = Sample.empty;
             
-            out.writeBytes(sample.name);
-            for (int i = sample.name.length(); i < 22; ++i)
-                out.writeByte(0);
+            putString(buffer, sample.name, 22);
             
-            out.writeShort(sample.sample.length / 2);
-            out.writeByte(sample.fineTune);
-            out.writeByte(sample.volume);
-            out.writeShort(sample.repeatOffset / 2);
-            out.writeShort(sample.repeatLength / 2);
+            buffer.putShort((short)(sample.getLength() / 2));
+            buffer.put((byte)sample.fineTune);
+            buffer.put((byte)sample.volume);
+            buffer.putShort((short)(sample.repeatOffset / 2));
+            buffer.putShort((short)(sample.repeatLength / 2));
         }
         
-        out.writeByte(patternTable.size());
-        out.writeByte(repeatIndex);
+        buffer.put((byte)patternTable.size());
+        buffer.put((byte)repeatIndex);
         
         for (int patternIndex : patternTable)
-            out.writeByte(patternIndex);
+            buffer.put((byte)patternIndex);
         for (int i = patternTable.size(); i < 128; ++i)
-            out.writeByte(0);
+            buffer.put((byte)0);
         
-        out.writeBytes("M.K.");
+        putString(buffer, "M.K.", 4);
         
         for (Pattern pattern : patterns)
         {
+            token.check("bytes saved", byteCount);
+            
+            if (buffer.remaining() < 64 * 4 * 4)
+                byteCount += flush(channel, buffer);
+            
             for (Note[] row : pattern.notes)
             {
                 for (Note note : row)
@@ -164,29 +731,64 @@ public class ProtrackerModule
                     if (note == null)
                         note = Note.empty;
                     
-                    out.writeByte((note.sample & 0xf0) | (note.period >> 8));
-                    out.writeByte(note.period);
-                    out.writeByte((note.sample << 4) | (note.effect >> 8));
-                    out.writeByte(note.effect);
+                    buffer.put((byte)((note.sample & 0xf0) | (note.period >> 8)));
+                    buffer.put((byte)note.period);
+                    buffer.put((byte)((note.sample << 4) | (note.effect >> 8)));
+                    buffer.put((byte)note.effect);
                 }
             }
         }
         
+        byteCount += flush(channel, buffer);
+        
         for (Sample sample : samples)
         {
             if (sample != null)
             {
-                out.write(sample.sample);
+                ByteBuffer body = sample.getBody();
+                
+                int bodyEnd = body.limit();
+                
+                while (body.position() < bodyEnd)
+                {
+                    token.check("bytes saved", byteCount);
+                    
+                    body.limit(Math.min(bodyEnd, body.position() + saveChunkSize));
+                    
+                    while (body.hasRemaining())
+                        byteCount += channel.write(body);
+                }
             }
         }
+        
+        return byteCount;
     }
 
-    private void validate()
+    private static void putString( ByteBuffer buffer, String string, int length )
     {
-        for (Sample sample : samples)
-            if (sample != null)
-                sample.validate();
+        for (int i = 0; i < length; ++i)
+            buffer.put(i < string.length() ? (byte)string.charAt(i) : 0);
+    }
+
+    private static int flush( WritableByteChannel channel, ByteBuffer buffer ) throws IOException
+    {
+        buffer.flip();
+        
+        int byteCount = buffer.remaining();
+        
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        
+        buffer.clear();
+        
+        return byteCount;
+    }
 
+    private void validate()
+    {
+        if (patternTable.size() > 128)
+            throw new IllegalStateException("patternTable is too long");
+        
         for (Integer patternIndex : patternTable)
         {
             if (patternIndex == null)
@@ -197,128 +799,396 @@ public class ProtrackerModule
         }
         
         for (Pattern pattern : patterns)
-        {
             if (pattern == null)
                 throw new IllegalStateException("pattern is null");
-            
-            pattern.validate();
-        }
     }
 
-    public static class Sample
+    public static class Builder
     {
-        private static final Sample empty = new Sample();
+        private String title = "";
         
-        private String name = "";
-        private byte[] sample = new byte[0];
-        private int fineTune;
-        private int volume;
-        private int repeatOffset;
-        private int repeatLength;
-
-        public String getName()
+        private final Sample[] samples = new Sample[31];
+        
+        private final ArrayList<Integer> patternTable = new ArrayList<>();
+        
+        private int repeatIndex;
+        
+        private final ArrayList<Pattern> patterns = new ArrayList<>();
+        
+        private final HashMap<Pattern, Integer> patternIndices = new HashMap<>();
+        
+        public Builder()
         {
-            return name;
         }
         
-        public void setName( String name )
+        public Builder( ProtrackerModule module )
         {
-            if (name == null)
-                throw new IllegalArgumentException("name is null");
-
-            if (name.length() > 22)
-                name = name.substring(0, 22);
-
-            this.name = name;
+            title = module.title;
+            System.arraycopy(module.samples, 0, samples, 0, samples.length);
+            patternTable.addAll(module.patternTable);
+            repeatIndex = module.repeatIndex;
+            
+            for (Pattern pattern : module.patterns)
+                appendPattern(pattern);
         }
-
-        public byte[] getSample()
+        
+        /**
+         * Adds a pattern even if an equal one was already added, so that
+         * loaded modules keep their patterns as they were stored.
+         */
+        private void appendPattern( Pattern pattern )
         {
-            return sample;
+            if (!patternIndices.containsKey(pattern))
+                patternIndices.put(pattern, patterns.size());
+            
+            patterns.add(pattern);
         }
         
-        public void setSample( byte[] sample )
+        public Builder setTitle( String title )
         {
-            if (sample == null)
-                throw new IllegalArgumentException("sample is null");
+            if (title == null)
+                throw new IllegalArgumentException("title is null");
             
-            this.sample = sample;
+            if (title.length() > 20)
+                title = title.substring(0, 20);
+            
+            this.title = title;
+            
+            return this;
         }
-
-        public int getFineTune()
+        
+        public Sample getSample( int i )
         {
-            return fineTune;
+            return samples[i];
         }
-
-        public void setFineTune( int fineTune )
+        
+        public Builder setSample( int i, Sample sample )
         {
-            if (fineTune < -8 || fineTune > 7)
-                throw new IllegalArgumentException("fineTune is out-of-range");
+            samples[i] = sample;
             
-            this.fineTune = fineTune & 0x0f;
+            return this;
         }
-
-        public int getVolume()
+        
+        public Builder setRepeatIndex( int repeatIndex )
         {
-            return volume;
+            if (repeatIndex < 0 || repeatIndex > 127)
+                throw new IllegalArgumentException("repeatIndex is out-of-range");
+            
+            this.repeatIndex = repeatIndex;
+            
+            return this;
         }
-
-        public void setVolume( int volume )
+        
+        /**
+         * Adds a pattern unless an equal pattern has already been added.
+         *
+         * @return the index of the pattern
+         */
+        public int addPattern( Pattern pattern )
         {
-            if (volume < 0 || volume > 64)
-                throw new IllegalArgumentException("volume is out-of-range");
+            if (pattern == null)
+                throw new IllegalArgumentException("pattern is null");
+            
+            Integer patternIndex = patternIndices.get(pattern);
+            
+            if (patternIndex == null)
+            {
+                patternIndex = patterns.size();
+                patternIndices.put(pattern, patternIndex);
+                patterns.add(pattern);
+            }
             
-            this.volume = volume;
+            return patternIndex;
         }
-
-        public int getRepeatOffset()
+        
+        public int getPatternCount()
         {
-            return repeatOffset;
+            return patterns.size();
         }
-
-        public void setRepeatOffset( int repeatOffset )
+        
+        public Builder addPosition( int patternIndex )
         {
-            if (repeatOffset < 0 || repeatOffset > (1 << 17))
-                throw new IllegalArgumentException("repeatOffset is out-of-range");
-            if (repeatOffset % 2 != 0)
-                throw new IllegalArgumentException("repeatOffset is invalid");
+            patternTable.add(patternIndex);
             
-            this.repeatOffset = repeatOffset;
+            return this;
+        }
+        
+        public int getPositionCount()
+        {
+            return patternTable.size();
         }
+        
+        public ProtrackerModule build()
+        {
+            return new ProtrackerModule(this);
+        }
+    }
 
+    public static class Sample
+    {
+        private static final Sample empty = new Builder().build();
+        
+        private final String name;
+        private final ByteBuffer body;
+        private final int fineTune;
+        private final int volume;
+        private final int repeatOffset;
+        private final int repeatLength;
+        
+        private volatile SampleAnalysis analysis;
+        
+        private Sample( Builder builder )
+        {
+            name = builder.name;
+            body = builder.body;
+            fineTune = builder.fineTune;
+            volume = builder.volume;
+            repeatOffset = builder.repeatOffset;
+            repeatLength = builder.repeatLength;
+            
+            if (repeatOffset > body.limit())
+                throw new IllegalStateException("repeatOffset is out-of-range");
+            
+            if (repeatOffset + repeatLength > body.limit())
+                throw new IllegalStateException("repeatLength is out-of-range");
+        }
+        
+        public String getName()
+        {
+            return name;
+        }
+        
+        /**
+         * @return a read-only view of the sample body
+         */
+        public ByteBuffer getBody()
+        {
+            return body.duplicate();
+        }
+        
+        public int getLength()
+        {
+            return body.limit();
+        }
+        
+        public SampleAnalysis getAnalysis()
+        {
+            // racing threads compute the same immutable result
+            SampleAnalysis analysis = this.analysis;
+            
+            if (analysis == null)
+            {
+                analysis = SampleAnalysis.analyze(body);
+                this.analysis = analysis;
+            }
+            
+            return analysis;
+        }
+        
+        /**
+         * @return the finetune, from -8 to 7, as it was set
+         */
+        public int getFineTune()
+        {
+            // stored as the nibble that is saved
+            return fineTune << 28 >> 28;
+        }
+        
+        public int getVolume()
+        {
+            return volume;
+        }
+        
+        public int getRepeatOffset()
+        {
+            return repeatOffset;
+        }
+        
         public int getRepeatLength()
         {
             return repeatLength;
         }
-
-        public void setRepeatLength( int repeatLength )
+        
+        private boolean isLooped()
         {
-            if (repeatLength < 0 || repeatLength > (1 << 17))
-                throw new IllegalArgumentException("repeatLength is out-of-range");
-            if (repeatLength % 2 != 0)
-                throw new IllegalArgumentException("repeatLength is invalid");
+            // a 2-byte loop at the start is the Protracker idiom for "one-shot"
+            return repeatLength > 2 || (repeatLength == 2 && repeatOffset > 0);
+        }
+        
+        private Sample trim()
+        {
+            int length = isLooped() ?
+                    repeatOffset + repeatLength :
+                    Math.max(getLength() - getAnalysis().getTrailingSilence(), repeatOffset + repeatLength);
+            
+            length = Math.min(length + length % 2, getLength());
+            
+            if (length == getLength())
+                return this;
+            
+            ByteBuffer trimmedBody = getBody();
+            trimmedBody.limit(length);
             
-            this.repeatLength = repeatLength;
+            return new Builder(this).setBody(trimmedBody).build();
         }
         
-        private void validate()
+        private boolean isEquivalent( Sample other )
         {
-            if (repeatOffset > sample.length)
-                throw new IllegalStateException("repeatOffset is out-of-range");
+            return fineTune == other.fineTune &&
+                    volume == other.volume &&
+                    repeatOffset == other.repeatOffset &&
+                    repeatLength == other.repeatLength &&
+                    getAnalysis().getHash() == other.getAnalysis().getHash() &&
+                    body.equals(other.body);
+        }
+        
+        public static class Builder
+        {
+            private static final ByteBuffer emptyBody = ByteBuffer.allocate(0).asReadOnlyBuffer();
             
-            if (repeatOffset + repeatLength > sample.length)
-                throw new IllegalStateException("repeatLength is out-of-range");
+            private String name = "";
+            private ByteBuffer body = emptyBody;
+            private int fineTune;
+            private int volume;
+            private int repeatOffset;
+            private int repeatLength;
+            
+            public Builder()
+            {
+            }
+            
+            public Builder( Sample sample )
+            {
+                name = sample.name;
+                body = sample.body;
+                fineTune = sample.fineTune;
+                volume = sample.volume;
+                repeatOffset = sample.repeatOffset;
+                repeatLength = sample.repeatLength;
+            }
+            
+            public Builder setName( String name )
+            {
+                if (name == null)
+                    throw new IllegalArgumentException("name is null");
+                
+                if (name.length() > 22)
+                    name = name.substring(0, 22);
+                
+                this.name = name;
+                
+                return this;
+            }
+            
+            /**
+             * Sets the sample body to a copy of the given bytes.
+             */
+            public Builder setBody( byte[] body )
+            {
+                if (body == null)
+                    throw new IllegalArgumentException("body is null");
+                
+                return wrapBody(body.clone());
+            }
+            
+            /**
+             * Sets the sample body to the remaining bytes of the given buffer
+             * without copying them.  The caller must not modify the contents
+             * of the buffer afterwards.
+             */
+            public Builder setBody( ByteBuffer body )
+            {
+                if (body == null)
+                    throw new IllegalArgumentException("body is null");
+                
+                this.body = body.slice().asReadOnlyBuffer();
+                
+                return this;
+            }
+            
+            Builder wrapBody( byte[] body )
+            {
+                return setBody(ByteBuffer.wrap(body));
+            }
+            
+            public Builder setFineTune( int fineTune )
+            {
+                if (fineTune < -8 || fineTune > 7)
+                    throw new IllegalArgumentException("fineTune is out-of-range");
+                
+                this.fineTune = fineTune & 0x0f;
+                
+                return this;
+            }
+            
+            public int getVolume()
+            {
+                return volume;
+            }
+            
+            public Builder setVolume( int volume )
+            {
+                if (volume < 0 || volume > 64)
+                    throw new IllegalArgumentException("volume is out-of-range");
+                
+                this.volume = volume;
+                
+                return this;
+            }
+            
+            public Builder setRepeatOffset( int repeatOffset )
+            {
+                if (repeatOffset < 0 || repeatOffset > (1 << 17))
+                    throw new IllegalArgumentException("repeatOffset is out-of-range");
+                if (repeatOffset % 2 != 0)
+                    throw new IllegalArgumentException("repeatOffset is invalid");
+                
+                this.repeatOffset = repeatOffset;
+                
+                return this;
+            }
+            
+            public Builder setRepeatLength( int repeatLength )
+            {
+                if (repeatLength < 0 || repeatLength > (1 << 17))
+                    throw new IllegalArgumentException("repeatLength is out-of-range");
+                if (repeatLength % 2 != 0)
+                    throw new IllegalArgumentException("repeatLength is invalid");
+                
+                this.repeatLength = repeatLength;
+                
+                return this;
+            }
+            
+            public Sample build()
+            {
+                return new Sample(this);
+            }
         }
     }
 
     public static class Note
     {
-        private static final Note empty = new Note();
-                
-        private int period;
-        private int sample;
-        private int effect;
-
+        public static final Note empty = new Note(0, 0, 0);
+        
+        private final int period;
+        private final int sample;
+        private final int effect;
+        
+        public Note( int period, int sample, int effect )
+        {
+            if (period != 0 && getPeriodIndex(period) < 0)
+                throw new IllegalArgumentException("period is invalid");
+            if (sample < 0 || sample > 31)
+                throw new IllegalArgumentException("sample is out-of-range");
+            if (effect < 0 || effect > 0xfff)
+                throw new IllegalArgumentException("effect is out of range");
+            
+            this.period = period;
+            this.sample = sample;
+            this.effect = effect;
+        }
+        
         @Override
         public boolean equals( Object o )
         {
@@ -332,83 +1202,329 @@ public class ProtrackerModule
             
             return false;
         }
-
-        public int getPeriod()
+        
+        @Override
+        public int hashCode()
         {
-            return period;
+            return (period * 32 + sample) * 4096 + effect;
         }
-
-        public void setPeriod( int period )
-        {            
-            if (period != 0 && ArrayUtils.binarySearchReverse(periodTable, period) < 0)
-                throw new IllegalArgumentException("period is invalid");
+        
+        /**
+         * @return the note in tracker notation
+         */
+        @Override
+        public String toString()
+        {
+            String noteNotation;
+            if (period == 0)
+            {
+                noteNotation = "...";
+            }
+            else
+            {
+                int noteIndex = periodIndices[period];
+                int octave = noteIndex / 12;
+                noteNotation = String.format("%s%d", noteNames[noteIndex - octave * 12], octave + 3);
+            }
             
-            this.period = period;
+            String sampleNotation = sample == 0 ?
+                    ".." :
+                    String.format("%02d", sample);
+            
+            String effectNotation = effect == 0 ?
+                    "..." :
+                    String.format("%03X", effect);
+            
+            return String.format("%s %s .. %s", noteNotation, sampleNotation, effectNotation);
         }
-
+        
+        public int getPeriod()
+        {
+            return period;
+        }
+        
         public int getSample()
         {
             return sample;
         }
-
-        public void setSample( int sample )
+        
+        public Note withSample( int sample )
         {
-            if (sample < 0 || sample > 31)
-                throw new IllegalArgumentException("sample is out-of-range");
-            
-            this.sample = sample;
+            return sample == this.sample ? this : new Note(period, sample, effect);
         }
-
+        
         public int getEffect()
         {
             return effect;
         }
-
-        public void setEffect( int effect )
+        
+        public Note withEffect( int effect )
         {
-            if (effect < 0 || effect > 0xfff)
-                throw new IllegalArgumentException("effect is out of range");
-            
-            this.effect = effect;
+            return effect == this.effect ? this : new Note(period, sample, effect);
         }
-
+        
         public boolean isEmpty()
         {
             return equals(empty);
         }
-        
-        private void validate()
-        {
-            // TODO
-        }
     }
-    
+
     public static class Pattern
     {
-        public final Note[][] notes = new Note[64][4];
-
+        private final Note[][] notes;
+        
+        private final int hashCode;
+        
+        // row hashes followed by the hash of the whole pattern, computed
+        // when first needed
+        private volatile long[] contentHashes;
+        
+        private Pattern( Note[][] notes )
+        {
+            this.notes = notes;
+            this.hashCode = Arrays.deepHashCode(notes);
+        }
+        
+        /**
+         * @return the note, or null if the cell is empty
+         */
+        public Note getNote( int row, int voice )
+        {
+            return notes[row][voice];
+        }
+        
+        /**
+         * @return a 64-bit hash of the cells of a row
+         */
+        public long getRowHash( int row )
+        {
+            return getContentHashes()[row];
+        }
+        
+        /**
+         * @return a 64-bit hash of the cells of the pattern
+         */
+        public long getContentHash()
+        {
+            return getContentHashes()[64];
+        }
+        
+        private long[] getContentHashes()
+        {
+            long[] hashes = contentHashes;
+            
+            if (hashes == null)
+            {
+                hashes = new long[64 + 1];
+                
+                long patternHash = 0xcbf29ce484222325L;
+                
+                for (int r = 0; r < 64; ++r)
+                {
+                    long rowHash = 0xcbf29ce484222325L;
+                    
+                    for (Note note : notes[r])
+                    {
+                        long cell = note == null ? 0 : (long)note.period << 20 | note.sample << 12 | note.effect;
+                        
+                        rowHash = (rowHash ^ cell) * 0x100000001b3L;
+                    }
+                    
+                    hashes[r] = rowHash;
+                    
+                    patternHash = (patternHash ^ rowHash) * 0x100000001b3L;
+                }
+                
+                hashes[64] = patternHash;
+                
+                contentHashes = hashes;
+            }
+            
+            return hashes;
+        }
+        
         @Override
         public boolean equals( Object o )
         {
             if (o instanceof Pattern)
             {
                 Pattern other = (Pattern)o;
-                return Arrays.deepEquals(notes, other.notes);
+                return hashCode == other.hashCode &&
+                        Arrays.deepEquals(notes, other.notes);
             }
             
             return false;
         }
         
-        private void validate()
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+        
+        private Pattern remapSamples( int[] sampleMap )
         {
-            for (Note[] row : notes)
+            Builder builder = null;
+            
+            for (int r = 0; r < 64; ++r)
             {
-                if (row == null)
-                    throw new IllegalStateException("row is null");
+                for (int v = 0; v < 4; ++v)
+                {
+                    Note note = notes[r][v];
+                    
+                    if (note == null || sampleMap[note.sample] == note.sample)
+                        continue;
+                    
+                    if (builder == null)
+                        builder = new Builder(this);
+                    
+                    builder.setNote(r, v, note.withSample(sampleMap[note.sample]));
+                }
+            }
+            
+            return builder == null ? this : builder.build();
+        }
+        
+        /**
+         * @return the pattern with the Cxx effect of every note that plays an
+         *         amplified sample scaled down by the peak of the sample
+         */
+        private Pattern scaleVolumeEffects( int[] samplePeaks, int targetPeak )
+        {
+            Builder builder = null;
+            
+            for (int r = 0; r < 64; ++r)
+            {
+                for (int v = 0; v < 4; ++v)
+                {
+                    Note note = notes[r][v];
+                    
+                    if (note == null || samplePeaks[note.sample] == 0 || (note.effect & 0xf00) != 0xc00)
+                        continue;
+                    
+                    int peak = samplePeaks[note.sample];
+                    int volume = ((note.effect & 0xff) * peak + targetPeak / 2) / targetPeak;
+                    
+                    if (builder == null)
+                        builder = new Builder(this);
+                    
+                    builder.setNote(r, v, note.withEffect(0xc00 | volume));
+                }
+            }
+            
+            return builder == null ? this : builder.build();
+        }
+        
+        /**
+         * @return the pattern with every position jump moved by the given
+         *         number of positions
+         */
+        private Pattern movePositionJumps( int offset )
+        {
+            Builder builder = null;
+            
+            for (int r = 0; r < 64; ++r)
+            {
+                for (int v = 0; v < 4; ++v)
+                {
+                    Note note = notes[r][v];
+                    
+                    if (note == null || (note.effect & 0xf00) != 0xb00 || offset == 0)
+                        continue;
+                    
+                    int position = (note.effect & 0xff) + offset;
+                    
+                    if (position > 127)
+                        throw new UnsupportedOperationException("position jump is out-of-range");
+                    
+                    if (builder == null)
+                        builder = new Builder(this);
+                    
+                    builder.setNote(r, v, note.withEffect(0xb00 | position));
+                }
+            }
+            
+            return builder == null ? this : builder.build();
+        }
+        
+        /**
+         * @return the pattern with a jump to the given position on the row
+         *         that leaves the pattern, unless that row already has one
+         */
+        private Pattern withLoop( int position )
+        {
+            int exitRow = 64 - 1;
+            
+            exitRowSearch:
+            for (int r = 0; r < 64; ++r)
+            {
+                for (Note note : notes[r])
+                {
+                    if (note != null && ((note.effect & 0xf00) == 0xb00 || (note.effect & 0xf00) == 0xd00))
+                    {
+                        exitRow = r;
+                        break exitRowSearch;
+                    }
+                }
+            }
+            
+            for (Note note : notes[exitRow])
+                if (note != null && (note.effect & 0xf00) == 0xb00)
+                    return this;
+            
+            for (int v = 4 - 1; v >= 0; --v)
+            {
+                Note note = notes[exitRow][v];
                 
-                for (Note note : row)
-                    if (note != null)
-                        note.validate();
+                if (note == null || note.effect == 0)
+                {
+                    if (note == null)
+                        note = Note.empty;
+                    
+                    return new Builder(this).setNote(exitRow, v, note.withEffect(0xb00 | position)).build();
+                }
+            }
+            
+            throw new UnsupportedOperationException("no room for song loop");
+        }
+        
+        public static class Builder
+        {
+            private final Note[][] notes = new Note[64][4];
+            
+            public Builder()
+            {
+            }
+            
+            public Builder( Pattern pattern )
+            {
+                for (int r = 0; r < 64; ++r)
+                    System.arraycopy(pattern.notes[r], 0, notes[r], 0, 4);
+            }
+            
+            public Note getNote( int row, int voice )
+            {
+                return notes[row][voice];
+            }
+            
+            /**
+             * @param note the note, or null to empty the cell
+             */
+            public Builder setNote( int row, int voice, Note note )
+            {
+                notes[row][voice] = note == null || note.isEmpty() ? null : note;
+                
+                return this;
+            }
+            
+            public Pattern build()
+            {
+                Note[][] notes = new Note[64][];
+                
+                for (int r = 0; r < 64; ++r)
+                    notes[r] = this.notes[r].clone();
+                
+                return new Pattern(notes);
             }
         }
     }
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Checkpoints into the step stream of an SJS module, so that a window of rows
+ * can be decoded without parsing the whole module.
+ *
+ * The voices of a module advance through their rows at different rates,
+ * because each note may delay its voice, so a row has no fixed place in the
+ * stream.  A checkpoint records a step of the stream, and the row each
+ * voice's next note starts at and which voices have ended by then.  A
+ * checkpoint is taken whenever every voice still playing has moved past
+ * another multiple of the interval, so decoding a window of a voice starts
+ * at most a little more than the interval before it.
+ *
+ * An index can be saved next to its module, and is rebuilt if the module has
+ * changed since.
+ *
+ * @author mindless
+ */
+public class RowIndex
+{
+    public static final int defaultInterval = 256;
+
+    private static final int magic = 0x534a5349;  // SJSI
+
+    private static final int version = 1;
+
+    private final int interval;
+
+    private final int delay;
+
+    private final int flags;
+
+    private final int[] voiceRowCounts;
+
+    private final int rowCount;
+
+    private final int checkpointCount;
+
+    private final int[] checkpointSteps;
+
+    private final int[] checkpointRows;  // 4 per checkpoint
+
+    private final byte[] checkpointEndedMasks;
+
+    private RowIndex( int interval, int delay, int flags, int[] voiceRowCounts, int checkpointCount, int[] checkpointSteps, int[] checkpointRows, byte[] checkpointEndedMasks )
+    {
+        this.interval = interval;
+        this.delay = delay;
+        this.flags = flags;
+        this.voiceRowCounts = voiceRowCounts;
+        this.checkpointCount = checkpointCount;
+        this.checkpointSteps = checkpointSteps;
+        this.checkpointRows = checkpointRows;
+        this.checkpointEndedMasks = checkpointEndedMasks;
+        
+        rowCount = SoundPlayerModule.getCycleRowCount(flags, voiceRowCounts);
+    }
+
+    /**
+     * Builds an index in one pass over the remaining bytes of a module.
+     *
+     * @param interval the number of rows between checkpoints
+     */
+    public static RowIndex build( ByteBuffer module, int interval, ParseBudget budget ) throws ParseBudgetExceededException
+    {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval is out-of-range");
+        
+        module = module.duplicate();
+        
+        budget.checkBytes(module.remaining());
+        
+        if (module.remaining() < 3)
+            throw new IllegalStateException("module is truncated");
+        
+        int delay = module.get() & 0xff;
+        delay |= (module.get() & 0xff) << 8;
+        int flags = module.get() & 0xff;
+        
+        if ((flags & 0x0f) == 0 || (flags & ~0x0f) != 0)
+            throw new IllegalStateException("module has invalid flags");
+        
+        int[] voiceRowCounts = new int[4];
+        
+        int checkpointCount = 0;
+        int[] checkpointSteps = new int[16];
+        int[] checkpointRows = new int[16 * 4];
+        byte[] checkpointEndedMasks = new byte[16];
+        
+        int nextCheckpointRow = 0;
+        
+        int ended = 0;
+        for (int step = 0; (ended & flags & 0x0f) != (flags & 0x0f); ++step)
+        {
+            int minRow = Integer.MAX_VALUE;
+            for (int v = 0; v < 4; ++v)
+                if ((flags & ~ended & (1 << v)) != 0)
+                    minRow = Math.min(minRow, voiceRowCounts[v]);
+            
+            if (minRow >= nextCheckpointRow)
+            {
+                if (checkpointCount == checkpointSteps.length)
+                {
+                    checkpointSteps = Arrays.copyOf(checkpointSteps, checkpointCount * 2);
+                    checkpointRows = Arrays.copyOf(checkpointRows, checkpointCount * 2 * 4);
+                    checkpointEndedMasks = Arrays.copyOf(checkpointEndedMasks, checkpointCount * 2);
+                }
+                
+                checkpointSteps[checkpointCount] = step;
+                System.arraycopy(voiceRowCounts, 0, checkpointRows, checkpointCount * 4, 4);
+                checkpointEndedMasks[checkpointCount] = (byte)ended;
+                ++checkpointCount;
+                
+                nextCheckpointRow = minRow - minRow % interval + interval;
+            }
+            
+            if (module.remaining() < 4 * 3)
+                throw new IllegalStateException("module is truncated");
+            
+            for (int v = 0; v < 4; ++v)
+            {
+                module.get();  // semitone
+                module.get();  // sample
+                int effect = module.get() & 0xff;
+                
+                if ((ended & (1 << v)) != 0)
+                    continue;
+                
+                voiceRowCounts[v] += 1;
+                
+                if (effect >= 0x57 && effect <= 0x88)
+                    voiceRowCounts[v] += effect - 0x57;
+                else if (effect == 0xde)
+                    ended |= 1 << v;
+                
+                budget.checkRows(voiceRowCounts[v]);
+            }
+        }
+        
+        return new RowIndex(interval, delay, flags, voiceRowCounts, checkpointCount, checkpointSteps, checkpointRows, checkpointEndedMasks);
+    }
+
+    /**
+     * Loads the index saved next to a module, or builds it and saves it
+     * there if it is missing, was built with another interval, or is older
+     * than the module.
+     */
+    public static RowIndex open( Path modulePath, int interval, ParseBudget budget ) throws IOException
+    {
+        Path indexPath = getIndexPath(modulePath);
+        
+        long moduleSize = Files.size(modulePath);
+        long moduleTime = Files.getLastModifiedTime(modulePath).toMillis();
+        
+        if (Files.isRegularFile(indexPath))
+        {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath))))
+            {
+                RowIndex index = read(in, moduleSize, moduleTime, interval);
+                
+                if (index != null)
+                    return index;
+            }
+            catch (IOException | IllegalStateException ex)
+            {
+                // rebuild it
+            }
+        }
+        
+        RowIndex index;
+        
+        try (FileChannel channel = FileChannel.open(modulePath, StandardOpenOption.READ))
+        {
+            budget.checkBytes(channel.size());
+            
+            index = build(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), interval, budget);
+        }
+        
+        try
+        {
+            Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath))))
+            {
+                index.write(out, moduleSize, moduleTime);
+            }
+            
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException ex)
+        {
+            // the saved index only saves time
+        }
+        
+        return index;
+    }
+
+    public static Path getIndexPath( Path modulePath )
+    {
+        return modulePath.resolveSibling(modulePath.getFileName() + ".rowidx");
+    }
+
+    /**
+     * @return the index, or null if it doesn't match the module or interval
+     */
+    private static RowIndex read( DataInputStream in, long moduleSize, long moduleTime, int interval ) throws IOException
+    {
+        if (in.readInt() != magic || in.readInt() != version)
+            throw new IllegalStateException("not a row index");
+        
+        if (in.readLong() != moduleSize || in.readLong() != moduleTime || in.readInt() != interval)
+            return null;
+        
+        int delay = in.readInt();
+        int flags = in.readInt();
+        
+        int[] voiceRowCounts = new int[4];
+        for (int v = 0; v < 4; ++v)
+            voiceRowCounts[v] = in.readInt();
+        
+        int checkpointCount = in.readInt();
+        
+        // every checkpoint is at least one step of 12 bytes apart
+        if (checkpointCount < 1 || checkpointCount > moduleSize / 12 + 1)
+            throw new IllegalStateException("checkpoint count is out-of-range");
+        
+        int[] checkpointSteps = new int[checkpointCount];
+        int[] checkpointRows = new int[checkpointCount * 4];
+        byte[] checkpointEndedMasks = new byte[checkpointCount];
+        
+        for (int c = 0; c < checkpointCount; ++c)
+        {
+            checkpointSteps[c] = in.readInt();
+            for (int v = 0; v < 4; ++v)
+                checkpointRows[c * 4 + v] = in.readInt();
+            checkpointEndedMasks[c] = in.readByte();
+        }
+        
+        return new RowIndex(interval, delay, flags, voiceRowCounts, checkpointCount, checkpointSteps, checkpointRows, checkpointEndedMasks);
+    }
+
+    private void write( DataOutputStream out, long moduleSize, long moduleTime ) throws IOException
+    {
+        out.writeInt(magic);
+        out.writeInt(version);
+        out.writeLong(moduleSize);
+        out.writeLong(moduleTime);
+        out.writeInt(interval);
+        out.writeInt(delay);
+        out.writeInt(flags);
+        
+        for (int v = 0; v < 4; ++v)
+            out.writeInt(voiceRowCounts[v]);
+        
+        out.writeInt(checkpointCount);
+        
+        for (int c = 0; c < checkpointCount; ++c)
+        {
+            out.writeInt(checkpointSteps[c]);
+            for (int v = 0; v < 4; ++v)
+                out.writeInt(checkpointRows[c * 4 + v]);
+            out.writeByte(checkpointEndedMasks[c]);
+        }
+    }
+
+    public int getDelay()
+    {
+        return delay;
+    }
+
+    public int getFlags()
+    {
+        return flags;
+    }
+
+    /**
+     * @return the number of rows of the module, as {@link
+     *         SoundPlayerModule#getRowCount}
+     */
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+
+    public int getCheckpointCount()
+    {
+        return checkpointCount;
+    }
+
+    /**
+     * Decodes a window of rows, with voices repeating as {@link
+     * SoundPlayerModule.Voice#getUnrolledNote}.
+     *
+     * @param module the module the index was built from
+     * @return the notes of each row and voice, or null where no note starts
+     */
+    public SoundPlayerModule.Note[][] decode( ByteBuffer module, int firstRow, int count )
+    {
+        if (firstRow < 0 || count < 0)
+            throw new IllegalArgumentException("window is out-of-range");
+        
+        SoundPlayerModule.Note[][] notes = new SoundPlayerModule.Note[count][4];
+        
+        for (int v = 0; v < 4; ++v)
+        {
+            // a voice that isn't flagged is as long as the module
+            int voiceRowCount = (flags & (1 << v)) != 0 ? voiceRowCounts[v] : rowCount;
+            
+            if (voiceRowCount == 0)
+                continue;
+            
+            int start = firstRow % voiceRowCount;
+            int end = (int)Math.min(voiceRowCount, (long)start + count);
+            
+            SoundPlayerModule.Note[] voiceNotes = count >= voiceRowCount ?
+                    decodeVoice(module, v, 0, voiceRowCount) :
+                    decodeVoice(module, v, start, end);
+            int voiceNotesStart = count >= voiceRowCount ? 0 : start;
+            
+            SoundPlayerModule.Note[] wrappedNotes = null;
+            
+            for (int i = 0; i < count; ++i)
+            {
+                int row = (int)(((long)firstRow + i) % voiceRowCount);
+                
+                if (row >= voiceNotesStart && row - voiceNotesStart < voiceNotes.length)
+                {
+                    notes[i][v] = voiceNotes[row - voiceNotesStart];
+                }
+                else
+                {
+                    // the window wrapped around to the start of the voice
+                    if (wrappedNotes == null)
+                        wrappedNotes = decodeVoice(module, v, 0, start);
+                    
+                    notes[i][v] = wrappedNotes[row];
+                }
+            }
+        }
+        
+        return notes;
+    }
+
+    private SoundPlayerModule.Note[] decodeVoice( ByteBuffer module, int voice, int fromRow, int toRow )
+    {
+        SoundPlayerModule.Note[] notes = new SoundPlayerModule.Note[toRow - fromRow];
+        
+        // the last checkpoint before the voice reaches fromRow
+        int c = 0;
+        for (int lower = 0, upper = checkpointCount - 1; lower <= upper; )
+        {
+            int middle = (lower + upper) >>> 1;
+            
+            if (checkpointRows[middle * 4 + voice] <= fromRow)
+            {
+                c = middle;
+                lower = middle + 1;
+            }
+            else
+            {
+                upper = middle - 1;
+            }
+        }
+        
+        ByteBuffer in = module.duplicate();
+        in.position(in.position() + 3 + checkpointSteps[c] * 4 * 3);
+        
+        int row = checkpointRows[c * 4 + voice];
+        int ended = checkpointEndedMasks[c];
+        
+        while ((ended & (1 << voice)) == 0 && (ended & flags) != flags && row < toRow)
+        {
+            if (in.remaining() < 4 * 3)
+                throw new IllegalStateException("module is truncated");
+            
+            for (int v = 0; v < 4; ++v)
+            {
+                int semitone = in.get() & 0xff;
+                int sample = in.get() & 0xff;
+                int effect = in.get() & 0xff;
+                
+                if ((ended & (1 << v)) != 0)
+                    continue;
+                
+                if (effect == 0xde)
+                    ended |= 1 << v;
+                
+                if (v != voice)
+                    continue;
+                
+                if (row >= fromRow && row < toRow)
+                    notes[row - fromRow] = new SoundPlayerModule.Note(semitone, sample, effect);
+                
+                row += 1;
+                
+                if (effect >= 0x57 && effect <= 0x88)
+                    row += effect - 0x57;
+            }
+        }
+        
+        return notes;
+    }
+}
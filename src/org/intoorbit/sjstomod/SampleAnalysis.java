@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Statistics of a signed 8-bit sample body, gathered in a single pass.
+ * Analyses are immutable.
+ *
+ * @author mindless
+ */
+public class SampleAnalysis
+{
+    public static SampleAnalysis analyze( byte[] sample )
+    {
+        return analyze(sample, 0, sample.length);
+    }
+
+    public static SampleAnalysis analyze( byte[] sample, int offset, int length )
+    {
+        if (offset < 0 || length < 0 || offset + length > sample.length)
+            throw new IndexOutOfBoundsException();
+
+        return analyze(ByteBuffer.wrap(sample, offset, length));
+    }
+
+    /**
+     * Analyzes the remaining bytes of the buffer without changing its
+     * position.
+     */
+    public static SampleAnalysis analyze( ByteBuffer sample )
+    {
+        int offset = sample.position();
+        int length = sample.remaining();
+
+        long hash = 0xcbf29ce484222325L;
+        int min = 0;
+        int max = 0;
+        int silentCount = 0;
+
+        int end = offset + length;
+        int i = offset;
+
+        // unrolled by 4 so that the loop-carried hash dependency is all that
+        // serializes the loop; the remaining statistics pipeline around it
+        for (; i + 4 <= end; i += 4)
+        {
+            int b0 = sample.get(i);
+            int b1 = sample.get(i + 1);
+            int b2 = sample.get(i + 2);
+            int b3 = sample.get(i + 3);
+
+            hash = (hash ^ (b0 & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (b1 & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (b2 & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (b3 & 0xff)) * 0x100000001b3L;
+
+            min = Math.min(min, Math.min(Math.min(b0, b1), Math.min(b2, b3)));
+            max = Math.max(max, Math.max(Math.max(b0, b1), Math.max(b2, b3)));
+
+            if ((b0 | b1 | b2 | b3) == 0)
+                silentCount += 4;
+            else if ((b1 | b2 | b3) == 0)
+                silentCount = 3;
+            else if ((b2 | b3) == 0)
+                silentCount = 2;
+            else if (b3 == 0)
+                silentCount = 1;
+            else
+                silentCount = 0;
+        }
+
+        for (; i < end; ++i)
+        {
+            int b = sample.get(i);
+
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+
+            min = Math.min(min, b);
+            max = Math.max(max, b);
+
+            silentCount = b == 0 ? silentCount + 1 : 0;
+        }
+
+        return new SampleAnalysis(length, hash, Math.max(-min, max), silentCount);
+    }
+
+    private final int length;
+    private final long hash;
+    private final int peak;
+    private final int trailingSilence;
+
+    private SampleAnalysis( int length, long hash, int peak, int trailingSilence )
+    {
+        this.length = length;
+        this.hash = hash;
+        this.peak = peak;
+        this.trailingSilence = trailingSilence;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the FNV-1a hash of the sample bytes
+     */
+    public long getHash()
+    {
+        return hash;
+    }
+
+    /**
+     * @return the largest absolute amplitude, from 0 to 128
+     */
+    public int getPeak()
+    {
+        return peak;
+    }
+
+    /**
+     * @return the number of zero bytes at the end of the sample
+     */
+    public int getTrailingSilence()
+    {
+        return trailingSilence;
+    }
+}
@@ -11,10 +11,13 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.TreeMap;
+import java.util.List;
+import org.intoorbit.sjstomod.utils.ByteBufferInputStream;
 import org.intoorbit.sjstomod.utils.StringUtils;
 
 /**
@@ -25,97 +28,165 @@ public class SoundPlayerModule
 {
     public static SoundPlayerModule load( InputStream inStream ) throws IOException
     {
-        DataInputStream in = new DataInputStream(inStream);
+        return load(inStream, ParseBudget.standard);
+    }
+    
+    public static SoundPlayerModule load( ByteBuffer buffer, ParseBudget budget ) throws IOException
+    {
+        return load(buffer, budget, CancellationToken.none);
+    }
+    
+    public static SoundPlayerModule load( ByteBuffer buffer, ParseBudget budget, CancellationToken token ) throws IOException
+    {
+        budget.checkBytes(buffer.remaining());
         
-        SoundPlayerModule module = new SoundPlayerModule();
+        return load(new ByteBufferInputStream(buffer), budget, token);
+    }
+    
+    public static SoundPlayerModule load( InputStream inStream, ParseBudget budget ) throws IOException
+    {
+        return load(inStream, budget, CancellationToken.none);
+    }
+    
+    public static SoundPlayerModule load( InputStream inStream, ParseBudget budget, CancellationToken token ) throws IOException
+    {
+        DataInputStream in = new DataInputStream(inStream);
         
-        module.delay = in.readUnsignedByte();
-        module.delay |= in.readUnsignedByte() << 8;
-        module.flags = in.readUnsignedByte();
+        Builder builder = new Builder();
         
-        if ((module.flags & 0x0f) == 0)
-            throw new IllegalStateException("module has no voices");
+        int delay = in.readUnsignedByte();
+        delay |= in.readUnsignedByte() << 8;
+        int flags = in.readUnsignedByte();
         
-        if ((module.flags & ~0x0f) != 0)
-            throw new IllegalStateException("module has unknown flags");
+        builder.setDelay(delay);
+        builder.setFlags(flags);
         
-        for (int i = 0; i < module.voices.length; ++i)
-            module.voices[i] = new Voice();
+        int[] voiceRowCounts = new int[4];
         
-        int[] voiceRowCounts = new int[module.voices.length];
+        long byteCount = 3;
         
         int ended = 0;
-        while ((ended & module.flags & 0x0f) != (module.flags & 0x0f))
+        while ((ended & flags & 0x0f) != (flags & 0x0f))
         {
-            for (int v = 0; v < module.voices.length; ++v)
+            byteCount += 4 * 3;
+            budget.checkBytes(byteCount);
+            
+            if (byteCount % CancellationToken.checkInterval < 4 * 3)
+                token.check("module bytes loaded", byteCount);
+            
+            for (int v = 0; v < 4; ++v)
             {
-                Note note = new Note();
-                
-                note.semitone = in.readUnsignedByte();
-                note.sample = in.readUnsignedByte();
-                note.effect = in.readUnsignedByte();
+                int semitone = in.readUnsignedByte();
+                int sample = in.readUnsignedByte();
+                int effect = in.readUnsignedByte();
                 
                 if ((ended & (1 << v)) != 0)
                     continue;
                 
-                Voice voice = module.voices[v];
-                
-                voice.notes.put(voiceRowCounts[v], note);
+                builder.addNote(v, voiceRowCounts[v], new Note(semitone, sample, effect));
                 voiceRowCounts[v] += 1;
 
-                if (note.effect >= 0x57 && note.effect <= 0x88)
+                if (effect >= 0x57 && effect <= 0x88)
                 {
                     // delay voice rows
-                    voiceRowCounts[v] += note.effect - 0x57;
+                    voiceRowCounts[v] += effect - 0x57;
                 }
-                else if (note.effect == 0xde)
+                else if (effect == 0xde)
                 {
                     // repeat voice
                     ended |= 1 << v;
                 }
+                
+                budget.checkRows(voiceRowCounts[v]);
             }
         }
         
-        module.rowCount = -1;
-        for (int i = 0; i < voiceRowCounts.length; ++i)
+        for (int v = 0; v < voiceRowCounts.length; ++v)
+            if ((flags & (1 << v)) != 0)
+                builder.setVoiceRowCount(v, voiceRowCounts[v]);
+        
+        builder.setRowCount(getCycleRowCount(flags, voiceRowCounts));
+        
+        return builder.build();
+    }
+    
+    /**
+     * @return the number of rows after which the voices all repeat together,
+     *         or, if that is more rows than fit in a Protracker module, the
+     *         length of the longest voice or the capacity of a Protracker
+     *         module, whichever is larger
+     */
+    static int getCycleRowCount( int flags, int[] voiceRowCounts )
+    {
+        long cycleRowCount = 1;
+        int maxVoiceRowCount = 0;
+        
+        for (int v = 0; v < voiceRowCounts.length; ++v)
         {
-            if ((module.flags & (1 << i)) != 0)
-            {
-                if (module.rowCount == -1)
-                    module.rowCount = voiceRowCounts[i];
-                else if (voiceRowCounts[i] != module.rowCount)
-                    throw new IllegalStateException("voices have mismatched row counts");
-            }
+            if ((flags & (1 << v)) == 0 || voiceRowCounts[v] == 0)
+                continue;
+            
+            maxVoiceRowCount = Math.max(maxVoiceRowCount, voiceRowCounts[v]);
+            
+            if (cycleRowCount <= maxUnrolledRowCount)
+                cycleRowCount = cycleRowCount / gcd(cycleRowCount, voiceRowCounts[v]) * voiceRowCounts[v];
         }
         
-        return module;
+        if (cycleRowCount > maxUnrolledRowCount)
+            return Math.max(maxVoiceRowCount, maxUnrolledRowCount);
+        
+        return (int)cycleRowCount;
     }
     
+    private static long gcd( long a, long b )
+    {
+        while (b != 0)
+        {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        
+        return a;
+    }
+    
+    // 128 patterns in the pattern table
+    private static final int maxUnrolledRowCount = 128 * 64;
+    
     private static final Charset charset = Charset.forName("ISO-8859-1");
         
     public static String[] determineSampleNames( RandomAccessFile levelDataFile, String moduleName ) throws IOException
+    {
+        ByteBuffer levelData = levelDataFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, levelDataFile.length());
+        
+        return determineSampleNames(levelData, moduleName);
+    }
+    
+    public static String[] determineSampleNames( ByteBuffer levelData, String moduleName )
     {
         if (moduleName.length() > 11)
             throw new IllegalArgumentException("moduleName is too long");
         
         byte[] moduleNameBytes = Arrays.copyOf(moduleName.getBytes(charset), 12);
         
+        levelData = levelData.duplicate();
+        
         int maxSampleId = 0;
         
-        long moduleEntryPosition = levelDataFile.length() - 16 - 12;
+        int moduleEntryPosition = levelData.limit() - 16 - 12;
         
         while (0x1d38 + maxSampleId * (11 + 1) <= moduleEntryPosition)
         {
-            levelDataFile.seek(moduleEntryPosition);
+            levelData.position(moduleEntryPosition);
             
             byte[] moduleEntryNameBytes = new byte[12];
             
-            levelDataFile.readFully(moduleEntryNameBytes);
+            levelData.get(moduleEntryNameBytes);
 
             int[] moduleEntrySampleIds = new int[16];
             
             for (int i = 0; i < 16; ++i)
-                moduleEntrySampleIds[i] = levelDataFile.readUnsignedByte();
+                moduleEntrySampleIds[i] = levelData.get() & 0xff;
             
             if (Arrays.equals(moduleEntryNameBytes, moduleNameBytes))
             {
@@ -125,13 +196,13 @@ public class SoundPlayerModule
                 {
                     if (moduleEntrySampleIds[i] > 0)
                     {
-                        levelDataFile.seek(0x1d38 + (moduleEntrySampleIds[i] - 1) * (11 + 1));
+                        levelData.position(0x1d38 + (moduleEntrySampleIds[i] - 1) * (11 + 1));
 
                         byte[] sampleNameBytes = new byte[11];
                         
-                        levelDataFile.readFully(sampleNameBytes);
+                        levelData.get(sampleNameBytes);
                         
-                        int sampleEntryUnknownFlag = levelDataFile.readUnsignedByte();
+                        int sampleEntryUnknownFlag = levelData.get() & 0xff;
                         
                         String sampleEntryName = new String(sampleNameBytes, charset);
                         
@@ -157,12 +228,119 @@ public class SoundPlayerModule
         return null;
     }
     
-    public int delay;  // uint16
-    public int flags;  // uint8
+    /**
+     * Lists the modules that have entries in leveldata, checking that every
+     * entry refers to a well-formed sample name entry.
+     * 
+     * @throws IllegalStateException if leveldata doesn't have the expected
+     *         table layout
+     */
+    public static List<String> listModuleNames( ByteBuffer levelData )
+    {
+        levelData = levelData.duplicate();
+        
+        ArrayList<String> moduleNames = new ArrayList<>();
+        
+        int maxSampleId = 0;
+        
+        int moduleEntryPosition = levelData.limit() - 16 - 12;
+        
+        while (0x1d38 + maxSampleId * (11 + 1) <= moduleEntryPosition)
+        {
+            levelData.position(moduleEntryPosition);
+            
+            byte[] moduleEntryNameBytes = new byte[12];
+            
+            levelData.get(moduleEntryNameBytes);
+            
+            String moduleEntryName = new String(moduleEntryNameBytes, charset);
+            
+            int moduleEntryNameLength = moduleEntryName.indexOf(0);
+            
+            // the table ends where the names stop looking like names
+            if (moduleEntryNameLength <= 0 || !isPrintable(moduleEntryName.substring(0, moduleEntryNameLength)))
+                break;
+            
+            for (int i = 0; i < 16; ++i)
+            {
+                int sampleId = levelData.get() & 0xff;
+                
+                if (sampleId > maxSampleId)
+                    maxSampleId = sampleId;
+            }
+            
+            moduleNames.add(moduleEntryName.substring(0, moduleEntryNameLength));
+            
+            moduleEntryPosition -= 16 + 12;
+        }
+        
+        if (moduleNames.isEmpty())
+            throw new IllegalStateException("leveldata has no module entries");
+        
+        if (0x1d38 + maxSampleId * (11 + 1) > levelData.limit())
+            throw new IllegalStateException("leveldata is truncated");
+        
+        for (int sampleId = 1; sampleId <= maxSampleId; ++sampleId)
+        {
+            boolean terminated = false;
+            
+            for (int i = 0; i < 11; ++i)
+                if (levelData.get(0x1d38 + (sampleId - 1) * (11 + 1) + i) == 0)
+                    terminated = true;
+            
+            if (!terminated)
+                throw new IllegalStateException("leveldata has an invalid sample entry");
+        }
+        
+        return moduleNames;
+    }
+    
+    private static boolean isPrintable( String name )
+    {
+        for (int i = 0; i < name.length(); ++i)
+            if (name.charAt(i) < 0x20 || name.charAt(i) > 0x7e)
+                return false;
+        
+        return true;
+    }
+    
+    private final int delay;  // uint16
+    private final int flags;  // uint8
 
-    public Voice[] voices = new Voice[4];
+    private final Voice[] voices;
+    
+    private final int rowCount;
+    
+    private SoundPlayerModule( Builder builder )
+    {
+        delay = builder.delay;
+        flags = builder.flags;
+        rowCount = builder.rowCount;
+        
+        voices = new Voice[4];
+        for (int v = 0; v < voices.length; ++v)
+            voices[v] = builder.voices[v].build(rowCount);
+    }
+    
+    public int getDelay()
+    {
+        return delay;
+    }
+    
+    public int getFlags()
+    {
+        return flags;
+    }
+    
+    public Voice getVoice( int i )
+    {
+        return voices[i];
+    }
     
-    public int rowCount;
+    public int getRowCount()
+    {
+        return rowCount;
+    }
     
     public int getBpm()
     {
@@ -177,14 +355,12 @@ public class SoundPlayerModule
         
         System.out.printf("rows:   %d\n", rowCount);
         
-        String[] noteNames = new String[] { "C-", "C#", "D-", "D#", "E-", "F-", "F#", "G-", "G#", "A-", "A#", "B-" };
-        
         for (int r = 0; r < rowCount; ++r)
         {
             for (int v = 0; v < voices.length; ++v)
             {
                 Voice voice = voices[v];
-                Note note = voice.notes.get(r);
+                Note note = voice.getUnrolledNote(r);
                 
                 if (note == null)
                 {
@@ -192,196 +368,7 @@ public class SoundPlayerModule
                     continue;
                 }
                 
-                String semitone;
-                if (note.semitone == 0)
-                {
-                    semitone = "...";
-                }
-                else
-                {
-                    int adjustedSemitone = note.semitone < 4 ? note.semitone - 1 : note.semitone;  // apparently no B-3
-                    int octave = (adjustedSemitone - 1 + 9) / 12;
-                    semitone = String.format("%s%d", noteNames[adjustedSemitone - 1 + 9 - octave * 12], octave + 3);
-                }
-                
-                String sampleNotation = note.sample == 0 ?
-                        ".." :
-                        String.format("%02d", note.sample);
-                
-                String effectNotation;
-                if (note.effect == 0x00)
-                {
-                    // no op
-                    effectNotation = "...";
-                }
-                else if (note.effect == 0x01)
-                {
-                    // disable high-cut filter
-                    effectNotation = "E01";
-                }
-                else if (note.effect == 0x02)
-                {
-                    // enable high-cut filter
-                    effectNotation = "E00";
-                }
-                else if (note.effect <= 0x42)
-                {
-                    assert(note.effect >= 0x03);
-                    // set voice volume (persistent)
-                    effectNotation = String.format("V%02X", note.effect - 0x03);
-                }
-                else if (note.effect == 0x43)
-                {
-                    // disable voice DMA (i.e., cut previous note)
-                    effectNotation = note.semitone == 0 || note.sample == 0 ?
-                            "C00" /* or "EC0" */ :
-                            "...";
-                }
-                else if (note.effect <= 0x56)
-                {
-                    assert(note.effect >= 0x44);
-                    // no op
-                    effectNotation = "...";
-                }
-                else if (note.effect <= 0x88)
-                {
-                    assert(note.effect >= 0x57);
-                    // delay voice rows
-                    effectNotation = "...";
-                }
-                else if (note.effect <= 0xa6)
-                {
-                    assert(note.effect >= 0x89);
-                    // no op
-                    effectNotation = "...";
-                }
-                else if (note.effect <= 0xb0)
-                {
-                    assert(note.effect >= 0xa7);
-                    // unknown op 6
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect <= 0xba)
-                {
-                    assert(note.effect >= 0xb1);
-                    // unknown op 7
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect <= 0xce)
-                {
-                    assert(note.effect >= 0xbb);
-                    // unknown op 8
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xcf)
-                {
-                    // unknown op 9
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xd0)
-                {
-                    // unknown op 10
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xd1)
-                {
-                    // unknown op 11
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect <= 0xdb)
-                {
-                    assert(note.effect >= 0xd2);
-                    // unknown op 12
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xdc)
-                {
-                    // unknown op 13
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xdd)
-                {
-                    // unknown op 14
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xde)
-                {
-                    // repeat voice
-                    effectNotation = "B00";
-                }
-                else if (note.effect == 0xdf)
-                {
-                    // unknown op 16
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xe0)
-                {
-                    // unknown op 17
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xe1)
-                {
-                    // unknown op 18
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xe2)
-                {
-                    // unknown op 19
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xe3)
-                {
-                    // unknown op 20
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xe4)
-                {
-                    // unknown op 21
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect <= 0xf8)
-                {
-                    assert(note.effect >= 0xe5);
-                    // unknown op 22
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xf9)
-                {
-                    // unknown op 23
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xfa)
-                {
-                    // unknown op 24
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xfb)
-                {
-                    // unknown op 25
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xfc)
-                {
-                    // unknown op 26
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect == 0xfd)
-                {
-                    // unknown op 27
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else if (note.effect <= 0xff)
-                {
-                    assert(note.effect >= 0xfe);
-                    // no op
-                    effectNotation = String.format("?%02X", note.effect);
-                }
-                else
-                {
-                    throw new IllegalStateException("invalid effect");
-                }
-                
-                System.out.printf(" | %s %s .. %s", semitone, sampleNotation, effectNotation);
+                System.out.printf(" | %s", note);
             }
             
             System.out.println();
@@ -390,6 +377,40 @@ public class SoundPlayerModule
     
     public ProtrackerModule toProtracker( ProtrackerModule.Sample[] ptSamples )
     {
+        return toProtracker(ptSamples, new PatternLayoutOptimizer(0));
+    }
+    
+    public ProtrackerModule toProtracker( ProtrackerModule.Sample[] ptSamples, PatternLayoutOptimizer layoutOptimizer )
+    {
+        return toProtracker(ptSamples, new int[ptSamples.length], layoutOptimizer);
+    }
+    
+    /**
+     * @param sampleTransposes the semitones to transpose the notes of each
+     *        sample by, as chosen by {@link PitchMatch}; a transpose that
+     *        would take notes beyond the period table is reduced until it
+     *        doesn't
+     */
+    public ProtrackerModule toProtracker( ProtrackerModule.Sample[] ptSamples, int[] sampleTransposes, PatternLayoutOptimizer layoutOptimizer )
+    {
+        try
+        {
+            return toProtracker(ptSamples, sampleTransposes, layoutOptimizer, CancellationToken.none);
+        }
+        catch (ConversionCancelledException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * @param token checked every {@link CancellationToken#checkInterval}
+     *        rows, and between the layout search and building the patterns
+     */
+    public ProtrackerModule toProtracker( ProtrackerModule.Sample[] ptSamples, int[] sampleTransposes, PatternLayoutOptimizer layoutOptimizer, CancellationToken token ) throws ConversionCancelledException
+    {
+        sampleTransposes = fitTransposes(sampleTransposes);
+        
         // SJS allows for some initial set-up rows which we try to collapse
         int collapsedRowCount = rowCount % 64;
         
@@ -399,7 +420,7 @@ public class SoundPlayerModule
             
             for (int r = 0; r < collapsedRowCount; ++r)
             {
-                Note note = voice.notes.get(r);
+                Note note = voice.getUnrolledNote(r);
                 
                 if (note == null)
                     continue;
@@ -409,64 +430,239 @@ public class SoundPlayerModule
             }
         }
         
-        ProtrackerModule ptModule = new ProtrackerModule();
+        ProtrackerModule.Builder ptModule = new ProtrackerModule.Builder();
         
         for (int i = 0; i < ptSamples.length; ++i)
-            ptModule.samples[i] = ptSamples[i];
+            ptModule.setSample(i, ptSamples[i]);
+        
+        int[][] volumePtNotes = translateVolumeToProtracker(ptModule);
         
-        for (int patternStartRow = collapsedRowCount; patternStartRow < rowCount; patternStartRow += 64)
+        ProtrackerModule.Note[][] ptRows = new ProtrackerModule.Note[rowCount - collapsedRowCount][4];
+        
+        for (int v = 0; v < 4; ++v)
         {
-            ProtrackerModule.Pattern ptPattern = new ProtrackerModule.Pattern();
+            Voice voice = voices[v];
             
-            for (int v = 0; v < 4; ++v)
+            // a note without a sample plays the last sample of the voice
+            int voiceSample = 0;
+            
+            // a voice keeps its volume when it repeats
+            int voiceVolume = 63;
+            
+            for (int r = 0; r < collapsedRowCount; ++r)
             {
-                Voice voice = voices[v];
+                Note note = voice.getUnrolledNote(r);
+                
+                if (note != null && isVolumeEffect(note.effect))
+                    voiceVolume = note.effect - 0x03;
+            }
 
-                for (int r = 0; r < 64; ++r)
-                {
-                    Note note = voice.notes.get(patternStartRow + r);
+            for (int r = 0; r < ptRows.length; ++r)
+            {
+                if (r % CancellationToken.checkInterval == 0)
+                    token.check("rows translated", (long)v * ptRows.length + r);
+                
+                int i = voice.getUnrolledNoteIndex(collapsedRowCount + r);
 
-                    if (note != null)
+                if (i >= 0)
+                {
+                    Note note = voice.getNoteAt(i);
+                    
+                    if (note.sample != 0)
+                        voiceSample = note.sample;
+                    
+                    int transpose = voiceSample == 0 || voiceSample > sampleTransposes.length ?
+                            0 :
+                            sampleTransposes[voiceSample - 1];
+                    
+                    if (isVolumeEffect(note.effect))
+                        voiceVolume = note.effect - 0x03;
+                    
+                    int ptSample = note.sample;
+                    int ptEffect = translateEffectToProtracker(note.semitone, note.sample, note.effect);
+                    int ptVolumeEffect = 0;
+                    
+                    if (note.semitone != 0 && note.sample != 0 && note.sample <= 31)
                     {
-                        ProtrackerModule.Note ptNote = new ProtrackerModule.Note();
-
-                        int adjustedNote = note.semitone < 4 ? note.semitone - 1 : note.semitone;  // apparently no B-3
-                        
-                        ptNote.setPeriod(note.semitone == 0 ?
-                                0 :
-                                ProtrackerModule.getPeriod(adjustedNote - 1 + 9));
-                        
-                        ptNote.setSample(note.sample);
+                        ptSample = volumePtNotes[note.sample - 1][voiceVolume] & 0xff;
+                        ptVolumeEffect = volumePtNotes[note.sample - 1][voiceVolume] >>> 8;
+                    }
+                    
+                    if (ptVolumeEffect != 0)
+                    {
+                        if (ptEffect != 0)
+                            throw new UnsupportedOperationException("sample volume change");
                         
-                        ptNote.setEffect(translateEffectToProtracker(note));
-
-                        if (!ptNote.isEmpty())
-                            ptPattern.notes[r][v] = ptNote;
+                        ptEffect = ptVolumeEffect;
                     }
+
+                    ProtrackerModule.Note ptNote = new ProtrackerModule.Note(
+                            note.semitone == 0 ?
+                                    0 :
+                                    ProtrackerModule.getPeriod(getPeriodIndex(note.semitone) + transpose),
+                            ptSample,
+                            ptEffect);
+                    
+                    // a voice that repeats before the others only jumps back
+                    // to the start at the end of the unrolled cycle
+                    if (note.effect == 0xde && r != ptRows.length - 1)
+                        ptNote = ptNote.withEffect(0);
+
+                    if (!ptNote.isEmpty())
+                        ptRows[r][v] = ptNote;
                 }
             }
+        }
+        
+        if (ptRows.length > 0)
+        {
+            translateInitialEffects(collapsedRowCount, ptRows[0]);
             
-            if (patternStartRow == collapsedRowCount)
-                translateInitialEffects(collapsedRowCount, ptPattern);
+            if (isUnrolled())
+                addPositionJump(ptRows[ptRows.length - 1]);
+        }
+        
+        int[] layout = layoutOptimizer.optimize(ptRows, token);
+        
+        token.check("rows translated", 4L * ptRows.length);
+        
+        int patternStartRow = 0;
+        
+        for (int patternRowCount : layout)
+        {
+            ProtrackerModule.Pattern.Builder ptPattern = new ProtrackerModule.Pattern.Builder();
             
-            int patternIndex;
+            for (int r = 0; r < patternRowCount && patternStartRow + r < ptRows.length; ++r)
+                for (int v = 0; v < 4; ++v)
+                    ptPattern.setNote(r, v, ptRows[patternStartRow + r][v]);
             
-            for (patternIndex = 0; patternIndex < ptModule.patterns.size(); ++patternIndex)
-                if (ptModule.patterns.get(patternIndex).equals(ptPattern))
-                    break;
+            if (patternRowCount < 64)
+                addPatternBreak(ptPattern, patternRowCount - 1);
             
-            if (patternIndex == ptModule.patterns.size())
-                ptModule.patterns.add(ptPattern);
+            ptModule.addPosition(ptModule.addPattern(ptPattern.build()));
             
-            ptModule.patternTable.add(patternIndex);
+            patternStartRow += patternRowCount;
         }
         
-        translateVolumeToProtracker(ptModule);
+        return ptModule.build();
+    }
+
+    static int getPeriodIndex( int semitone )
+    {
+        int adjustedNote = semitone < 4 ? semitone - 1 : semitone;  // apparently no B-3
+        
+        return adjustedNote - 1 + 9;
+    }
+    
+    private int[] fitTransposes( int[] sampleTransposes )
+    {
+        int[] minIndices = new int[sampleTransposes.length];
+        int[] maxIndices = new int[sampleTransposes.length];
+        Arrays.fill(minIndices, Integer.MAX_VALUE);
+        Arrays.fill(maxIndices, Integer.MIN_VALUE);
+        
+        for (Voice voice : voices)
+        {
+            int voiceSample = 0;
+            
+            for (int i = 0; i < voice.getNoteCount(); ++i)
+            {
+                Note note = voice.getNoteAt(i);
+                
+                if (note.sample != 0)
+                    voiceSample = note.sample;
+                
+                if (note.semitone == 0 || voiceSample == 0 || voiceSample > sampleTransposes.length)
+                    continue;
+                
+                int index = getPeriodIndex(note.semitone);
+                
+                minIndices[voiceSample - 1] = Math.min(minIndices[voiceSample - 1], index);
+                maxIndices[voiceSample - 1] = Math.max(maxIndices[voiceSample - 1], index);
+            }
+        }
+        
+        int[] fittedTransposes = sampleTransposes.clone();
+        
+        for (int s = 0; s < fittedTransposes.length; ++s)
+        {
+            if (minIndices[s] > maxIndices[s])
+                continue;
+            
+            int lowest = Math.min(0, -minIndices[s]);
+            int highest = Math.max(0, ProtrackerModule.getPeriodCount() - 1 - maxIndices[s]);
+            
+            fittedTransposes[s] = Math.max(lowest, Math.min(highest, fittedTransposes[s]));
+        }
+        
+        return fittedTransposes;
+    }
+    
+    private static void addPatternBreak( ProtrackerModule.Pattern.Builder ptPattern, int row )
+    {
+        for (int v = 0; v < 4; ++v)
+        {
+            ProtrackerModule.Note ptNote = ptPattern.getNote(row, v);
+            
+            if (ptNote != null && PatternLayoutOptimizer.isPatternBreakEffect(ptNote.getEffect()))
+                return;
+        }
+        
+        for (int v = 4 - 1; v >= 0; --v)
+        {
+            ProtrackerModule.Note ptNote = ptPattern.getNote(row, v);
+            
+            if (ptNote == null || ptNote.getEffect() == 0)
+            {
+                if (ptNote == null)
+                    ptNote = ProtrackerModule.Note.empty;
                 
-        return ptModule;
+                ptPattern.setNote(row, v, ptNote.withEffect(0xD00));
+                return;
+            }
+        }
+        
+        throw new IllegalStateException("no room for pattern break");
     }
 
-    private void translateInitialEffects( int collapsedRowCount, ProtrackerModule.Pattern firstPtPattern )
+    /**
+     * @return whether any voice repeats within the rows of the module
+     */
+    private boolean isUnrolled()
+    {
+        for (int v = 0; v < voices.length; ++v)
+            if ((flags & (1 << v)) != 0 && voices[v].rowCount != rowCount)
+                return true;
+        
+        return false;
+    }
+    
+    // a cycle capped at the Protracker limit doesn't end with all voices
+    // repeating, so it needs a jump of its own
+    private static void addPositionJump( ProtrackerModule.Note[] lastPtRow )
+    {
+        for (ProtrackerModule.Note ptNote : lastPtRow)
+            if (ptNote != null && (ptNote.getEffect() & 0xf00) == 0xb00)
+                return;
+        
+        for (int v = 4 - 1; v >= 0; --v)
+        {
+            ProtrackerModule.Note ptNote = lastPtRow[v];
+            
+            if (ptNote == null || ptNote.getEffect() == 0)
+            {
+                if (ptNote == null)
+                    ptNote = ProtrackerModule.Note.empty;
+                
+                lastPtRow[v] = ptNote.withEffect(0xB00);
+                return;
+            }
+        }
+        
+        throw new UnsupportedOperationException("no room for position jump");
+    }
+    
+    private void translateInitialEffects( int collapsedRowCount, ProtrackerModule.Note[] firstPtRow )
     {
         // best-effort placment of effects from collapsed rows
         for (int v = 0; v < voices.length; ++v)
@@ -475,33 +671,58 @@ public class SoundPlayerModule
             
             for (int r = 0; r < collapsedRowCount; ++r)
             {
-                Note note = voice.notes.get(r);
+                Note note = voice.getUnrolledNote(r);
                 
                 if (note == null)
                     continue;
                 
-                int ptEffect = translateEffectToProtracker(note);
+                int ptEffect = translateEffectToProtracker(note.semitone, note.sample, note.effect);
                 
                 if (ptEffect != 0)
                 {
-                    ProtrackerModule.Note ptNote = firstPtPattern.notes[0][v];
+                    ProtrackerModule.Note ptNote = firstPtRow[v];
                     
                     if (ptNote == null)
-                    {
-                        ptNote = new ProtrackerModule.Note();
-                        firstPtPattern.notes[0][v] = ptNote;
-                    }
+                        ptNote = ProtrackerModule.Note.empty;
                     
                     if (ptNote.getEffect() != 0)
                         throw new UnsupportedOperationException("irreconcilible initial effects");
                     
-                    ptNote.setEffect(ptEffect);
+                    firstPtRow[v] = ptNote.withEffect(ptEffect);
+                }
+            }
+        }
+        
+        int[] firstRowPtEffects = translateTempoToProtracker(getBpm());
+        
+        // best-effort placement of tempo effect
+        nextFirstRowEffect:
+        for (int ptEffect : firstRowPtEffects)
+        {
+            for (int v = 4 - 1; v >= 0; --v)
+            {
+                ProtrackerModule.Note ptNote = firstPtRow[v];
+                
+                if (ptNote == null)
+                    ptNote = ProtrackerModule.Note.empty;
+                
+                if (ptNote.getEffect() == 0)
+                {
+                    firstPtRow[v] = ptNote.withEffect(ptEffect);
+                    continue nextFirstRowEffect;
                 }
             }
+            
+            throw new UnsupportedOperationException("irreconcilable initial effects");
         }
-        
+    }
+    
+    /**
+     * @return the Fxx effects that set the given tempo in Protracker
+     */
+    static int[] translateTempoToProtracker( int bpm ) throws UnsupportedOperationException
+    {
         int tpd = 6;
-        int bpm = getBpm();
 
         // adjust BPM and TPD so that BPM is in range
         if (bpm < 0x20)
@@ -532,262 +753,360 @@ public class SoundPlayerModule
                 throw new IllegalStateException();
         }
         
-        ArrayList<Integer> firstRowPtEffects = new ArrayList<>();
-        
-        if (bpm != 125)
-            firstRowPtEffects.add(0xf00 | bpm);
-        if (tpd != 6)
-            firstRowPtEffects.add(0xf00 | tpd);
+        if (bpm != 125 && tpd != 6)
+            return new int[] { 0xf00 | bpm, 0xf00 | tpd };
+        else if (bpm != 125)
+            return new int[] { 0xf00 | bpm };
+        else if (tpd != 6)
+            return new int[] { 0xf00 | tpd };
+        else
+            return new int[0];
+    }
+    
+    /**
+     * Applies the voice volumes that the samples are played at to the
+     * samples.  The SJS files from the Lemmings games never change the volume
+     * after initially setting it, so this is usually all there is to it.  A
+     * sample that is played at other volumes gets a variant, sharing its body,
+     * in an unused slot for each, and once there are no more unused slots the
+     * notes play the sample and set the volume with Cxx.
+     * 
+     * A voice keeps its volume when it repeats, so in the repeats of a voice
+     * that repeats before the others, the notes before its first volume
+     * effect play at the volume it ended at.  Those notes get their slots
+     * after all the notes of the first pass.
+     * 
+     * @return for each sample that is played, or null, the note that plays
+     *         it at each volume: the slot in the low 8 bits, and above them
+     *         the Cxx effect that sets the volume, or 0 if it needs none
+     */
+    private int[][] translateVolumeToProtracker( ProtrackerModule.Builder ptModule )
+    {
+        boolean[] usedSlots = new boolean[31];
+        int[] firstVolumeIndices = new int[4];
+        int[] repeatVolumes = new int[4];
+        int noteCount = 0;
         
-        // best-effort placement of tempo effect
-        nextFirstRowEffect:
-        for (int ptEffect : firstRowPtEffects)
+        for (int v = 0; v < 4; ++v)
         {
-            for (int v = 4 - 1; v >= 0; --v)
+            Voice voice = voices[v];
+            
+            noteCount = Math.max(noteCount, voice.getNoteCount());
+            
+            int voiceVolume = 63;
+            int firstVolumeIndex = voice.getNoteCount();
+            
+            for (int i = 0; i < voice.getNoteCount(); ++i)
             {
-                ProtrackerModule.Note ptNote = firstPtPattern.notes[0][v];
+                Note note = voice.getNoteAt(i);
                 
-                if (ptNote == null)
+                if (isVolumeEffect(note.effect))
                 {
-                    ptNote = new ProtrackerModule.Note();
-                    firstPtPattern.notes[0][v] = ptNote;
+                    voiceVolume = note.effect - 0x03;
+                    firstVolumeIndex = Math.min(firstVolumeIndex, i);
                 }
                 
-                if (ptNote.getEffect() == 0)
+                if (note.sample != 0 && note.sample <= 31)
+                    usedSlots[note.sample - 1] = true;
+            }
+            
+            // only the notes before the first volume effect play at another
+            // volume in the repeats
+            firstVolumeIndices[v] = firstVolumeIndex;
+            repeatVolumes[v] = voice.rowCount != 0 && voice.rowCount < rowCount && firstVolumeIndex > 0 ?
+                    voiceVolume :
+                    63;
+        }
+        
+        // the slot of each sample at each volume, assigned in module order,
+        // first for the first pass of the voices and then for their repeats
+        int[][] volumeSlots = new int[31][];
+        int nextSlot = 0;
+        
+        for (int pass = 0; pass < 2; ++pass)
+        {
+            int[] voiceVolumes = new int[] { 63, 63, 63, 63 };
+            
+            for (int i = 0; i < noteCount; ++i)
+            {
+                for (int v = 0; v < 4; ++v)
                 {
-                    ptNote.setEffect(ptEffect);
-                    continue nextFirstRowEffect;
+                    if (i >= voices[v].getNoteCount())
+                        continue;
+                    
+                    Note note = voices[v].getNoteAt(i);
+                    
+                    if (isVolumeEffect(note.effect))
+                        voiceVolumes[v] = note.effect - 0x03;
+                    
+                    if (note.semitone == 0 || note.sample == 0 || note.sample > 31)
+                        continue;
+                    
+                    // the repeats of a voice share the slots of its first pass
+                    // unless their volumes differ
+                    if (pass == 1 && (repeatVolumes[v] == 63 || i >= firstVolumeIndices[v]))
+                        continue;
+                    
+                    int volume = pass == 0 ? voiceVolumes[v] : repeatVolumes[v];
+                    
+                    int s = note.sample - 1;
+                    
+                    if (volumeSlots[s] == null)
+                    {
+                        volumeSlots[s] = new int[64];
+                        Arrays.fill(volumeSlots[s], noSlot);
+                        volumeSlots[s][volume] = s;
+                    }
+                    else if (volumeSlots[s][volume] == noSlot)
+                    {
+                        while (nextSlot < 31 && usedSlots[nextSlot])
+                            ++nextSlot;
+                        
+                        volumeSlots[s][volume] = nextSlot < 31 ? nextSlot : fullSlots;
+                        
+                        if (nextSlot < 31)
+                            usedSlots[nextSlot] = true;
+                    }
                 }
             }
-            
-            throw new UnsupportedOperationException("irreconcilable initial effects");
         }
-    }
-    
-    // the SJS files from the Lemmings games never change the volume after
-    // initially setting it, so we just apply the volume to the samples
-    private void translateVolumeToProtracker( ProtrackerModule ptModule ) throws UnsupportedOperationException
-    {
-        Integer[] sampleVolumes = new Integer[31];
         
-        for (int v = 0; v < 4; ++v)
+        for (int s = 0; s < 31; ++s)
         {
-            Voice voice = voices[v];
+            if (volumeSlots[s] == null)
+                continue;
             
-            int voiceVolume = 63;
+            ProtrackerModule.Sample sample = ptModule.getSample(s);
+            int sampleVolume = getSampleVolume(ptModule, s);
             
-            for (Note note : voice.notes.values())
+            for (int volume = 0; volume < 64; ++volume)
             {
-                if (note.effect >= 0x03 && note.effect <= 0x42)
-                    voiceVolume = note.effect - 0x03;
+                int slot = volumeSlots[s][volume];
                 
-                if (note.semitone == 0 || note.sample == 0)
+                if (slot == fullSlots)
+                    volumeSlots[s][volume] = (0xC00 | sampleVolume * volume / 63) << 8 | 1 + s;
+                
+                if (slot < 0)
                     continue;
                 
-                Integer oldSampleVolume = sampleVolumes[note.sample - 1];
+                ProtrackerModule.Sample.Builder sampleBuilder = sample == null ?
+                        new ProtrackerModule.Sample.Builder() :
+                        new ProtrackerModule.Sample.Builder(sample);
+                
+                sampleBuilder.setVolume(sampleVolume * volume / 63);
                 
-                if (oldSampleVolume == null)
-                    sampleVolumes[note.sample - 1] = voiceVolume;
-                else if (oldSampleVolume != voiceVolume)
-                    throw new UnsupportedOperationException("sample volume change");
+                ptModule.setSample(slot, sampleBuilder.build());
                 
+                volumeSlots[s][volume] = 1 + slot;
             }
         }
         
-        for (int i = 0; i < 31; ++i)
+        return volumeSlots;
+    }
+    
+    private static boolean isVolumeEffect( int effect )
+    {
+        return effect >= 0x03 && effect <= 0x42;
+    }
+    
+    private static final int noSlot = -1;
+    
+    private static final int fullSlots = -2;
+    
+    private static int getSampleVolume( ProtrackerModule.Builder ptModule, int s )
+    {
+        ProtrackerModule.Sample sample = ptModule.getSample(s);
+        
+        return sample == null ? 63 : sample.getVolume();
+    }
+
+    static boolean isEffectTranslatable( int effect )
+    {
+        try
         {
-            Integer sampleVolume = sampleVolumes[i];
-            
-            if (sampleVolume != null)
-            {
-                ProtrackerModule.Sample sample = ptModule.samples[i];
-                
-                if (sample == null)
-                {
-                    sample = new ProtrackerModule.Sample();
-                    ptModule.samples[i] = sample;
-                    sample.setVolume(63);
-                }
-                    
-                sample.setVolume(sample.getVolume() * sampleVolume / 63);
-            }
+            // a note with a semitone and sample is the most permissive case
+            translateEffectToProtracker(1, 1, effect);
+            return true;
+        }
+        catch (IllegalStateException ex)
+        {
+            return false;
         }
     }
-
+    
     // the SJS files from the Lemmings games use very few of the effects, so
     // most of them are untranslated
-    private static int translateEffectToProtracker( Note note ) throws IllegalStateException
+    static int translateEffectToProtracker( int semitone, int sample, int effect ) throws IllegalStateException
     {
         int ptEffect;
         
-        if (note.effect == 0x00)
+        if (effect == 0x00)
         {
             // no op
             ptEffect = 0;
         }
-        else if (note.effect == 0x01)
+        else if (effect == 0x01)
         {
             // disable high-cut filter
             ptEffect = 0xE01;
         }
-        else if (note.effect == 0x02)
+        else if (effect == 0x02)
         {
             // enable high-cut filter
             ptEffect = 0xE00;
         }
-        else if (note.effect <= 0x42)
+        else if (effect <= 0x42)
         {
-            assert(note.effect >= 0x03);
+            assert(effect >= 0x03);
             // set voice volume (persistent)
             ptEffect = 0;
         }
-        else if (note.effect == 0x43)
+        else if (effect == 0x43)
         {
             // disable voice DMA (i.e., cut previous note)
-            ptEffect = note.semitone == 0 || note.sample == 0 ?
+            ptEffect = semitone == 0 || sample == 0 ?
                     0xC00 /* or 0xEC0 */ :
                     0;
         }
-        else if (note.effect <= 0x56)
+        else if (effect <= 0x56)
         {
-            assert(note.effect >= 0x44);
+            assert(effect >= 0x44);
             // no op
             ptEffect = 0;
         }
-        else if (note.effect <= 0x88)
+        else if (effect <= 0x88)
         {
-            assert(note.effect >= 0x57);
+            assert(effect >= 0x57);
             // delay voice rows
             ptEffect = 0;
         }
-        else if (note.effect <= 0xa6)
+        else if (effect <= 0xa6)
         {
-            assert(note.effect >= 0x89);
+            assert(effect >= 0x89);
             // no op
             ptEffect = 0;
         }
-        else if (note.effect <= 0xb0)
+        else if (effect <= 0xb0)
         {
-            assert(note.effect >= 0xa7);
+            assert(effect >= 0xa7);
             // unknown op 6
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect <= 0xba)
+        else if (effect <= 0xba)
         {
-            assert(note.effect >= 0xb1);
+            assert(effect >= 0xb1);
             // unknown op 7
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect <= 0xce)
+        else if (effect <= 0xce)
         {
-            assert(note.effect >= 0xbb);
+            assert(effect >= 0xbb);
             // unknown op 8
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xcf)
+        else if (effect == 0xcf)
         {
             // unknown op 9
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xd0)
+        else if (effect == 0xd0)
         {
             // unknown op 10
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xd1)
+        else if (effect == 0xd1)
         {
             // unknown op 11
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect <= 0xdb)
+        else if (effect <= 0xdb)
         {
-            assert(note.effect >= 0xd2);
+            assert(effect >= 0xd2);
             // unknown op 12
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xdc)
+        else if (effect == 0xdc)
         {
             // unknown op 13
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xdd)
+        else if (effect == 0xdd)
         {
             // unknown op 14
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xde)
+        else if (effect == 0xde)
         {
             // repeat voice
-            // (voice row positions are independent of one another in SJS and 
-            // could go out-of-sync, but this effect only ever appears
-            // synchronized at the end of modules, so we don't bother trying to
-            // translate it)
+            // (voice row positions are independent of one another in SJS, so
+            // voices of different lengths are unrolled until they line up
+            // again, and only the repeat at the end of that is kept)
             ptEffect = 0xB00;
         }
-        else if (note.effect == 0xdf)
+        else if (effect == 0xdf)
         {
             // unknown op 16
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xe0)
+        else if (effect == 0xe0)
         {
             // unknown op 17
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xe1)
+        else if (effect == 0xe1)
         {
             // unknown op 18
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xe2)
+        else if (effect == 0xe2)
         {
             // unknown op 19
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xe3)
+        else if (effect == 0xe3)
         {
             // unknown op 20
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xe4)
+        else if (effect == 0xe4)
         {
             // unknown op 21
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect <= 0xf8)
+        else if (effect <= 0xf8)
         {
-            assert(note.effect >= 0xe5);
+            assert(effect >= 0xe5);
             // unknown op 22
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xf9)
+        else if (effect == 0xf9)
         {
             // unknown op 23
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xfa)
+        else if (effect == 0xfa)
         {
             // unknown op 24
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xfb)
+        else if (effect == 0xfb)
         {
             // unknown op 25
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xfc)
+        else if (effect == 0xfc)
         {
             // unknown op 26
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect == 0xfd)
+        else if (effect == 0xfd)
         {
             // unknown op 27
             throw new IllegalStateException("unknown effect");
         }
-        else if (note.effect <= 0xff)
+        else if (effect <= 0xff)
         {
-            assert(note.effect >= 0xfe);
+            assert(effect >= 0xfe);
             // no op
             ptEffect = 0;
         }
@@ -799,15 +1118,431 @@ public class SoundPlayerModule
         return ptEffect;
     }
 
+    public static class Builder
+    {
+        private int delay;
+        private int flags;
+        
+        private final Voice.Builder[] voices = new Voice.Builder[4];
+        
+        private int rowCount;
+        
+        public Builder()
+        {
+            for (int v = 0; v < voices.length; ++v)
+                voices[v] = new Voice.Builder();
+        }
+        
+        public Builder setDelay( int delay )
+        {
+            if (delay < 0 || delay > 0xffff)
+                throw new IllegalArgumentException("delay is out-of-range");
+            
+            this.delay = delay;
+            
+            return this;
+        }
+        
+        public Builder setFlags( int flags )
+        {
+            if ((flags & 0x0f) == 0)
+                throw new IllegalStateException("module has no voices");
+
+            if ((flags & ~0x0f) != 0)
+                throw new IllegalStateException("module has unknown flags");
+            
+            this.flags = flags;
+            
+            return this;
+        }
+        
+        /**
+         * Adds a note to a voice.  Notes must be added to each voice in
+         * increasing row order.
+         */
+        public Builder addNote( int voice, int row, Note note )
+        {
+            voices[voice].addNote(row, note);
+            
+            return this;
+        }
+        
+        /**
+         * Sets the number of rows after which a voice repeats, if it is
+         * different from the row count of the module.
+         */
+        public Builder setVoiceRowCount( int voice, int rowCount )
+        {
+            if (rowCount < 0)
+                throw new IllegalArgumentException("rowCount is out-of-range");
+            
+            voices[voice].rowCount = rowCount;
+            
+            return this;
+        }
+        
+        /**
+         * Sets the number of rows in the module.  A voice with fewer rows
+         * repeats within the module.
+         */
+        public Builder setRowCount( int rowCount )
+        {
+            if (rowCount < 0)
+                throw new IllegalArgumentException("rowCount is out-of-range");
+            
+            this.rowCount = rowCount;
+            
+            return this;
+        }
+        
+        public SoundPlayerModule build()
+        {
+            return new SoundPlayerModule(this);
+        }
+    }
+    
     public static class Note
     {
-        public int semitone;  // uint8
-        public int sample;    // uint8
-        public int effect;    // uint8
+        private final int semitone;  // uint8
+        private final int sample;    // uint8
+        private final int effect;    // uint8
+        
+        private static final String[] noteNames = new String[] { "C-", "C#", "D-", "D#", "E-", "F-", "F#", "G-", "G#", "A-", "A#", "B-" };
+        
+        public Note( int semitone, int sample, int effect )
+        {
+            if ((semitone & ~0xff) != 0 || (sample & ~0xff) != 0 || (effect & ~0xff) != 0)
+                throw new IllegalArgumentException("note is out-of-range");
+            
+            this.semitone = semitone;
+            this.sample = sample;
+            this.effect = effect;
+        }
+        
+        public int getSemitone()
+        {
+            return semitone;
+        }
+        
+        public int getSample()
+        {
+            return sample;
+        }
+        
+        public int getEffect()
+        {
+            return effect;
+        }
+        
+        /**
+         * @return the note in tracker notation, with the effect as it is
+         *         translated
+         */
+        @Override
+        public String toString()
+        {
+            String semitoneNotation;
+            if (semitone == 0)
+            {
+                semitoneNotation = "...";
+            }
+            else
+            {
+                int adjustedSemitone = semitone < 4 ? semitone - 1 : semitone;  // apparently no B-3
+                int octave = (adjustedSemitone - 1 + 9) / 12;
+                semitoneNotation = String.format("%s%d", noteNames[adjustedSemitone - 1 + 9 - octave * 12], octave + 3);
+            }
+            
+            String sampleNotation = sample == 0 ?
+                    ".." :
+                    String.format("%02d", sample);
+            
+            String effectNotation;
+            if (effect == 0x00)
+            {
+                // no op
+                effectNotation = "...";
+            }
+            else if (effect == 0x01)
+            {
+                // disable high-cut filter
+                effectNotation = "E01";
+            }
+            else if (effect == 0x02)
+            {
+                // enable high-cut filter
+                effectNotation = "E00";
+            }
+            else if (effect <= 0x42)
+            {
+                assert(effect >= 0x03);
+                // set voice volume (persistent)
+                effectNotation = String.format("V%02X", effect - 0x03);
+            }
+            else if (effect == 0x43)
+            {
+                // disable voice DMA (i.e., cut previous note)
+                effectNotation = semitone == 0 || sample == 0 ?
+                        "C00" /* or "EC0" */ :
+                        "...";
+            }
+            else if (effect <= 0x56)
+            {
+                assert(effect >= 0x44);
+                // no op
+                effectNotation = "...";
+            }
+            else if (effect <= 0x88)
+            {
+                assert(effect >= 0x57);
+                // delay voice rows
+                effectNotation = "...";
+            }
+            else if (effect <= 0xa6)
+            {
+                assert(effect >= 0x89);
+                // no op
+                effectNotation = "...";
+            }
+            else if (effect <= 0xb0)
+            {
+                assert(effect >= 0xa7);
+                // unknown op 6
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect <= 0xba)
+            {
+                assert(effect >= 0xb1);
+                // unknown op 7
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect <= 0xce)
+            {
+                assert(effect >= 0xbb);
+                // unknown op 8
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xcf)
+            {
+                // unknown op 9
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xd0)
+            {
+                // unknown op 10
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xd1)
+            {
+                // unknown op 11
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect <= 0xdb)
+            {
+                assert(effect >= 0xd2);
+                // unknown op 12
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xdc)
+            {
+                // unknown op 13
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xdd)
+            {
+                // unknown op 14
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xde)
+            {
+                // repeat voice
+                effectNotation = "B00";
+            }
+            else if (effect == 0xdf)
+            {
+                // unknown op 16
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xe0)
+            {
+                // unknown op 17
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xe1)
+            {
+                // unknown op 18
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xe2)
+            {
+                // unknown op 19
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xe3)
+            {
+                // unknown op 20
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xe4)
+            {
+                // unknown op 21
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect <= 0xf8)
+            {
+                assert(effect >= 0xe5);
+                // unknown op 22
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xf9)
+            {
+                // unknown op 23
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xfa)
+            {
+                // unknown op 24
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xfb)
+            {
+                // unknown op 25
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xfc)
+            {
+                // unknown op 26
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect == 0xfd)
+            {
+                // unknown op 27
+                effectNotation = String.format("?%02X", effect);
+            }
+            else if (effect <= 0xff)
+            {
+                assert(effect >= 0xfe);
+                // no op
+                effectNotation = String.format("?%02X", effect);
+            }
+            else
+            {
+                throw new IllegalStateException("invalid effect");
+            }
+            
+            return String.format("%s %s .. %s", semitoneNotation, sampleNotation, effectNotation);
+        }
     }
     
+    /**
+     * The notes of a voice, stored as parallel arrays sorted by row.
+     */
     public static class Voice
     {
-        public TreeMap<Integer, Note> notes = new TreeMap<>();
+        private static final int[] noRows = new int[0];
+        
+        private static final Note[] noNotes = new Note[0];
+        
+        private final int[] rows;
+        
+        private final Note[] notes;
+        
+        private final int rowCount;
+        
+        private Voice( int[] rows, Note[] notes, int rowCount )
+        {
+            this.rows = rows;
+            this.notes = notes;
+            this.rowCount = rowCount;
+        }
+        
+        /**
+         * @return the number of rows after which the voice repeats
+         */
+        public int getRowCount()
+        {
+            return rowCount;
+        }
+        
+        /**
+         * @return the note at the given row of the voice repeated
+         *         indefinitely, or null if there is none
+         */
+        public Note getUnrolledNote( int row )
+        {
+            return getNote(rowCount == 0 ? row : row % rowCount);
+        }
+        
+        /**
+         * @return the index of the note at the given row of the voice
+         *         repeated indefinitely, or -1 if there is none
+         */
+        public int getUnrolledNoteIndex( int row )
+        {
+            int i = Arrays.binarySearch(rows, rowCount == 0 ? row : row % rowCount);
+            
+            return i < 0 ? -1 : i;
+        }
+        
+        /**
+         * @return the note at the given row, or null if there is none
+         */
+        public Note getNote( int row )
+        {
+            int i = Arrays.binarySearch(rows, row);
+            
+            return i < 0 ? null : notes[i];
+        }
+        
+        public int getNoteCount()
+        {
+            return notes.length;
+        }
+        
+        public int getNoteRow( int i )
+        {
+            return rows[i];
+        }
+        
+        public Note getNoteAt( int i )
+        {
+            return notes[i];
+        }
+        
+        private static class Builder
+        {
+            private int[] rows = noRows;
+            
+            private Note[] notes = noNotes;
+            
+            private int count;
+            
+            private int rowCount = -1;
+            
+            private void addNote( int row, Note note )
+            {
+                if (note == null)
+                    throw new IllegalArgumentException("note is null");
+                
+                if (count > 0 && row <= rows[count - 1])
+                    throw new IllegalArgumentException("row is out-of-order");
+                
+                if (count == rows.length)
+                {
+                    int capacity = Math.max(16, count * 2);
+                    rows = Arrays.copyOf(rows, capacity);
+                    notes = Arrays.copyOf(notes, capacity);
+                }
+                
+                rows[count] = row;
+                notes[count] = note;
+                ++count;
+            }
+            
+            private Voice build( int moduleRowCount )
+            {
+                return new Voice(Arrays.copyOf(rows, count), Arrays.copyOf(notes, count), rowCount < 0 ? moduleRowCount : rowCount);
+            }
+        }
     }
 }
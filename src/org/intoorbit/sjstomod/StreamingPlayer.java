@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.intoorbit.sjstomod.utils.LongRingBuffer;
+
+/**
+ * Plays SJS modules in real time as 16-bit little-endian stereo PCM.
+ *
+ * A sequencer thread walks the voices of the module tick by tick and sends
+ * note, volume and tick events to a mixer thread through a lock-free ring
+ * buffer.  The mixer renders one tick of frames per tick event and writes
+ * them out as each tick falls due, or later if the reader of the output
+ * falls behind, and the sequencer stays no more than the target latency
+ * ahead of the mixer.  When a tick falls due before the sequencer has
+ * finished sending it, the mixer renders the tick with the voices as they
+ * are and counts an underrun, and since those frames are already out, the
+ * rest of the module plays a tick later.
+ *
+ * Notes are played the way they are converted: voices repeat independently
+ * for the row count of the module, the volume set on a voice scales the
+ * volume of its samples, and the tempo is that of {@link
+ * SoundPlayerModule#getBpm} at 6 ticks per row.  Voices 0 and 3 are on the
+ * left and voices 1 and 2 on the right, as on the Amiga.
+ *
+ * @author mindless
+ */
+public class StreamingPlayer
+{
+    private static final double palClock = 7093789.2;
+
+    private static final int ticksPerRow = 6;
+
+    // events are packed into longs: type in bits 0-7, voice in bits 8-15,
+    // and arguments in bits 16-31 and 32-63
+    private static final int tickEvent = 0;
+    private static final int triggerEvent = 1;
+    private static final int volumeEvent = 2;
+    private static final int cutEvent = 3;
+    private static final int endEvent = 4;
+
+    private final int sampleRate;
+
+    private final int bufferCapacity;
+
+    private final int latencyMillis;
+
+    private final AtomicLong underrunCount = new AtomicLong();
+
+    private final AtomicLong stallCount = new AtomicLong();
+
+    private StreamingPlayer( Builder builder )
+    {
+        sampleRate = builder.sampleRate;
+        bufferCapacity = builder.bufferCapacity;
+        latencyMillis = builder.latencyMillis;
+    }
+
+    /**
+     * @return the number of ticks the mixer has rendered before the sequencer
+     *         finished sending them, over every module played
+     */
+    public long getUnderrunCount()
+    {
+        return underrunCount.get();
+    }
+
+    /**
+     * @return the number of times the sequencer found the ring buffer full,
+     *         over every module played
+     */
+    public long getStallCount()
+    {
+        return stallCount.get();
+    }
+
+    /**
+     * Plays a module once through its rows, returning when the last frame
+     * has been written.
+     *
+     * @param samples the samples of the module, indexed by sample number
+     *        less 1; a missing sample is silent
+     * @param sampleTransposes the semitones to transpose the notes of each
+     *        sample by
+     */
+    public void play( SoundPlayerModule module, ProtrackerModule.Sample[] samples, int[] sampleTransposes, WritableByteChannel out ) throws IOException, InterruptedException
+    {
+        if (module.getDelay() == 0)
+            throw new IllegalStateException("module has no delay");
+        
+        Session session = new Session(module, samples, sampleTransposes, out);
+        
+        Thread sequencerThread = new Thread(session.new Sequencer(), "sequencer");
+        Thread mixerThread = new Thread(session.new Mixer(), "mixer");
+        
+        sequencerThread.start();
+        mixerThread.start();
+        
+        try
+        {
+            sequencerThread.join();
+            mixerThread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            session.stopped = true;
+            sequencerThread.interrupt();
+            mixerThread.interrupt();
+            throw ex;
+        }
+        
+        if (session.failure instanceof IOException)
+            throw (IOException)session.failure;
+        if (session.failure != null)
+            throw (RuntimeException)session.failure;
+    }
+
+    private class Session
+    {
+        private final SoundPlayerModule module;
+        
+        private final ProtrackerModule.Sample[] samples;
+        
+        private final int[] sampleTransposes;
+        
+        private final WritableByteChannel out;
+        
+        private final LongRingBuffer events = new LongRingBuffer(bufferCapacity);
+        
+        private final long latencyTicks;
+        
+        private final AtomicLong sequencedTickCount = new AtomicLong();
+        
+        private final AtomicLong mixedTickCount = new AtomicLong();
+        
+        private volatile boolean stopped;
+        
+        // an IOException or RuntimeException
+        private volatile Exception failure;
+        
+        private Session( SoundPlayerModule module, ProtrackerModule.Sample[] samples, int[] sampleTransposes, WritableByteChannel out )
+        {
+            this.module = module;
+            this.samples = samples;
+            this.sampleTransposes = sampleTransposes;
+            this.out = out;
+            
+            // 2.5 ms per tick at 1 BPM
+            latencyTicks = Math.max(1, (long)latencyMillis * module.getBpm() * 2 / 5 / 1000);
+        }
+        
+        private void fail( Exception ex )
+        {
+            if (failure == null)
+                failure = ex;
+            
+            stopped = true;
+        }
+        
+        private class Sequencer implements Runnable
+        {
+            @Override
+            public void run()
+            {
+                int[] voiceSamples = new int[4];
+                
+                try
+                {
+                    for (int r = 0; r < module.getRowCount() && !stopped; ++r)
+                    {
+                        for (int v = 0; v < 4; ++v)
+                        {
+                            SoundPlayerModule.Note note = module.getVoice(v).getUnrolledNote(r);
+                            
+                            if (note == null)
+                                continue;
+                            
+                            if (note.getSample() != 0)
+                                voiceSamples[v] = note.getSample();
+                            
+                            if (note.getEffect() >= 0x03 && note.getEffect() <= 0x42)
+                                send(volumeEvent, v, note.getEffect() - 0x03, 0);
+                            
+                            if (note.getSemitone() != 0 && voiceSamples[v] != 0)
+                                send(triggerEvent, v, voiceSamples[v], getPeriod(voiceSamples[v], note.getSemitone()));
+                            
+                            // disable voice DMA, as translated
+                            if (note.getEffect() == 0x43 && (note.getSemitone() == 0 || note.getSample() == 0))
+                                send(cutEvent, v, 0, 0);
+                        }
+                        
+                        for (int t = 0; t < ticksPerRow && !stopped; ++t)
+                        {
+                            send(tickEvent, 0, 0, 0);
+                            
+                            long tickCount = sequencedTickCount.incrementAndGet();
+                            
+                            while (tickCount - mixedTickCount.get() > latencyTicks && !stopped)
+                                LockSupport.parkNanos(100 * 1000);
+                        }
+                    }
+                }
+                catch (RuntimeException ex)
+                {
+                    fail(ex);
+                }
+                
+                // the mixer stops on the end event, or at once if failed
+                send(endEvent, 0, 0, 0);
+                
+                // let the mixer start on a module shorter than the latency
+                sequencedTickCount.set(Long.MAX_VALUE);
+            }
+            
+            private int getPeriod( int sample, int semitone )
+            {
+                int index = SoundPlayerModule.getPeriodIndex(semitone);
+                int fineTune = 0;
+                
+                if (sample <= samples.length && samples[sample - 1] != null)
+                    fineTune = samples[sample - 1].getFineTune();
+                if (sample <= sampleTransposes.length)
+                    index += sampleTransposes[sample - 1];
+                
+                index = Math.max(0, Math.min(ProtrackerModule.getPeriodCount() - 1, index));
+                
+                return ProtrackerModule.getPeriod(fineTune, index);
+            }
+            
+            private void send( int type, int voice, int a, int b )
+            {
+                long event = type | voice << 8 | (long)a << 16 | (long)b << 32;
+                
+                while (!events.offer(event))
+                {
+                    if (stopped)
+                        return;
+                    
+                    stallCount.incrementAndGet();
+                    LockSupport.parkNanos(100 * 1000);
+                }
+            }
+        }
+        
+        private class Mixer implements Runnable
+        {
+            private final ByteBuffer[] bodies = new ByteBuffer[samples.length];
+            
+            private final int[] voiceSamples = new int[] { -1, -1, -1, -1 };
+            
+            private final int[] voiceVolumes = new int[] { 63, 63, 63, 63 };
+            
+            private final double[] positions = new double[4];
+            
+            private final double[] steps = new double[4];
+            
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < samples.length; ++i)
+                    if (samples[i] != null)
+                        bodies[i] = samples[i].getBody();
+                
+                double framesPerTick = sampleRate * 5.0 / (module.getBpm() * 2);
+                
+                ByteBuffer frames = ByteBuffer.allocateDirect(((int)framesPerTick + 1) * 4).order(ByteOrder.LITTLE_ENDIAN);
+                
+                double frameError = 0;
+                
+                try
+                {
+                    // fill up to the target latency before starting
+                    while (sequencedTickCount.get() < latencyTicks && !stopped)
+                        LockSupport.parkNanos(100 * 1000);
+                    
+                    double tickNanos = 2.5e9 / module.getBpm();
+                    long startNanos = System.nanoTime();
+                    
+                    boolean ended = false;
+                    
+                    while (!ended && !stopped)
+                    {
+                        // keep to real time, however fast the output is
+                        long dueNanos = startNanos + (long)(mixedTickCount.get() * tickNanos);
+                        
+                        for (long nanos = System.nanoTime(); nanos - dueNanos < 0 && !stopped; nanos = System.nanoTime())
+                            LockSupport.parkNanos(dueNanos - nanos);
+                        
+                        int tick = receiveTick();
+                        ended = tick == endEvent;
+                        
+                        frameError += framesPerTick;
+                        int frameCount = (int)frameError;
+                        frameError -= frameCount;
+                        
+                        frames.clear();
+                        render(frames, frameCount);
+                        frames.flip();
+                        
+                        while (frames.hasRemaining())
+                            out.write(frames);
+                        
+                        // the frames rendered on an underrun are already out,
+                        // so the ticks after it fall due a tick later
+                        if (tick == tickEvent)
+                            mixedTickCount.incrementAndGet();
+                        else
+                            startNanos += (long)tickNanos;
+                    }
+                    
+                    if (Thread.interrupted())
+                        throw new InterruptedIOException();
+                }
+                catch (IOException | RuntimeException ex)
+                {
+                    fail(ex);
+                }
+            }
+            
+            /**
+             * Applies the events of the next tick.
+             *
+             * @return the event that ended the tick, {@link #tickEvent} or
+             *         {@link #endEvent}, or -1 on an underrun
+             */
+            private int receiveTick()
+            {
+                for (;;)
+                {
+                    if (events.isEmpty())
+                    {
+                        // render with what we have; the rest of this tick
+                        // goes into the next one
+                        underrunCount.incrementAndGet();
+                        return -1;
+                    }
+                    
+                    long event = events.poll();
+                    
+                    int voice = (int)(event >> 8) & 0xff;
+                    int a = (int)(event >> 16) & 0xffff;
+                    int b = (int)(event >>> 32);
+                    
+                    switch ((int)event & 0xff)
+                    {
+                        case tickEvent:
+                        case endEvent:
+                            return (int)event & 0xff;
+                        
+                        case triggerEvent:
+                            voiceSamples[voice] = a <= bodies.length && bodies[a - 1] != null ? a - 1 : -1;
+                            positions[voice] = 0;
+                            steps[voice] = palClock / (2 * b) / sampleRate;
+                            break;
+                        
+                        case volumeEvent:
+                            voiceVolumes[voice] = a;
+                            break;
+                        
+                        case cutEvent:
+                            voiceSamples[voice] = -1;
+                            break;
+                    }
+                }
+            }
+            
+            private void render( ByteBuffer frames, int frameCount )
+            {
+                for (int f = 0; f < frameCount; ++f)
+                {
+                    int left = getValue(0) + getValue(3);
+                    int right = getValue(1) + getValue(2);
+                    
+                    // each voice is at most 128 * 64 * 63 / 63
+                    frames.putShort((short)(left * 32767 / (2 * 128 * 64)));
+                    frames.putShort((short)(right * 32767 / (2 * 128 * 64)));
+                }
+            }
+            
+            private int getValue( int voice )
+            {
+                int s = voiceSamples[voice];
+                
+                if (s < 0)
+                    return 0;
+                
+                ProtrackerModule.Sample sample = samples[s];
+                ByteBuffer body = bodies[s];
+                
+                int position = (int)positions[voice];
+                
+                if (sample.getRepeatLength() > 2)
+                {
+                    int repeatEnd = Math.min(body.limit(), sample.getRepeatOffset() + sample.getRepeatLength());
+                    
+                    while (position >= repeatEnd)
+                    {
+                        positions[voice] -= sample.getRepeatLength();
+                        position = (int)positions[voice];
+                    }
+                }
+                else if (position >= body.limit())
+                {
+                    voiceSamples[voice] = -1;
+                    return 0;
+                }
+                
+                positions[voice] += steps[voice];
+                
+                return body.get(position) * sample.getVolume() * voiceVolumes[voice] / 63;
+            }
+        }
+    }
+
+    public static class Builder
+    {
+        private int sampleRate = 44100;
+        
+        private int bufferCapacity = 4096;
+        
+        private int latencyMillis = 100;
+        
+        public Builder setSampleRate( int sampleRate )
+        {
+            if (sampleRate < 8000 || sampleRate > 192000)
+                throw new IllegalArgumentException("sampleRate is out-of-range");
+            
+            this.sampleRate = sampleRate;
+            return this;
+        }
+        
+        /**
+         * @param bufferCapacity the number of events the ring buffer between
+         *        the sequencer and the mixer holds; a power of 2
+         */
+        public Builder setBufferCapacity( int bufferCapacity )
+        {
+            if (bufferCapacity < 16 || (bufferCapacity & (bufferCapacity - 1)) != 0)
+                throw new IllegalArgumentException("bufferCapacity is not a power of 2 of at least 16");
+            
+            this.bufferCapacity = bufferCapacity;
+            return this;
+        }
+        
+        /**
+         * @param latencyMillis how far ahead of the mixer the sequencer runs
+         */
+        public Builder setLatencyMillis( int latencyMillis )
+        {
+            if (latencyMillis < 0)
+                throw new IllegalArgumentException("latencyMillis is negative");
+            
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+        
+        public StreamingPlayer build()
+        {
+            return new StreamingPlayer(this);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes 8SVX samples as 8-bit mono WAV files, with the loop in a 'smpl'
+ * chunk.  A sample without a rate is written at the rate that the converter
+ * plays it at without pitch matching, that of C-2 on a PAL Amiga.
+ *
+ * The header and the converted body are kept in buffers that are reused from
+ * one sample to the next, and are written together with a single gathering
+ * write.  A writer is not thread-safe.
+ *
+ * @author mindless
+ */
+public class WavWriter
+{
+    private static final byte[] fccRiff = fourCc("RIFF");
+
+    private static final byte[] fccWave = fourCc("WAVE");
+
+    private static final byte[] fccFmt = fourCc("fmt ");
+
+    private static final byte[] fccSmpl = fourCc("smpl");
+
+    private static final byte[] fccData = fourCc("data");
+
+    private static final int maxHeaderSize = 12 + (8 + 16) + (8 + 36 + 24) + 8;
+
+    private static final ByteBuffer pad = ByteBuffer.allocate(1).asReadOnlyBuffer();
+
+    private static final ByteBuffer noPad = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final ByteBuffer header = ByteBuffer.allocate(maxHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBuffer[] buffers = new ByteBuffer[3];
+
+    private ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * Writes the high octave of a sample.
+     * 
+     * @return the number of bytes written
+     */
+    public long write( Iff8svx sample, GatheringByteChannel channel ) throws IOException
+    {
+        ByteBuffer body = sample.getBody();
+        
+        int oneShotLength = Math.min(sample.getOneShotHighOctaveSamples(), body.remaining());
+        int repeatLength = Math.min(sample.getRepeatHighOctaveSamples(), body.remaining() - oneShotLength);
+        
+        int length = oneShotLength + repeatLength;
+        
+        // a sample with no octave lengths is all body
+        if (length == 0)
+            length = body.remaining();
+        
+        body.limit(body.position() + length);
+        
+        toUnsigned(body);
+        
+        boolean padded = length % 2 != 0;
+        
+        boolean looped = repeatLength > 0;
+        
+        int smplSize = 36 + (looped ? 24 : 0);
+        
+        int headerSize = 12 + (8 + 16) + (8 + smplSize) + 8;
+        
+        int samplesPerSecond = sample.getSamplesPerSecond() > 0 ?
+                sample.getSamplesPerSecond() :
+                PitchMatch.referenceSamplesPerSecond;
+        
+        header.clear();
+        
+        header.put(fccRiff).putInt(headerSize - 8 + length + (padded ? 1 : 0)).put(fccWave);
+        
+        header.put(fccFmt).putInt(16);
+        header.putShort((short)1);  // PCM
+        header.putShort((short)1);  // mono
+        header.putInt(samplesPerSecond);
+        header.putInt(samplesPerSecond);  // bytes per second
+        header.putShort((short)1);  // block align
+        header.putShort((short)8);  // bits per sample
+        
+        header.put(fccSmpl).putInt(smplSize);
+        header.putInt(0);  // manufacturer
+        header.putInt(0);  // product
+        header.putInt(1000000000 / samplesPerSecond);  // sample period (ns)
+        header.putInt(60);  // MIDI unity note
+        header.putInt(0);  // MIDI pitch fraction
+        header.putInt(0);  // SMPTE format
+        header.putInt(0);  // SMPTE offset
+        header.putInt(looped ? 1 : 0);  // loop count
+        header.putInt(0);  // sampler data size
+        
+        if (looped)
+        {
+            header.putInt(0);  // cue point
+            header.putInt(0);  // forward
+            header.putInt(oneShotLength);
+            header.putInt(oneShotLength + repeatLength - 1);  // inclusive
+            header.putInt(0);  // fraction
+            header.putInt(0);  // play forever
+        }
+        
+        header.put(fccData).putInt(length);
+        
+        header.flip();
+        
+        buffers[0] = header;
+        buffers[1] = data;
+        buffers[2] = (padded ? pad : noPad).duplicate();
+        
+        long byteCount = 0;
+        
+        while (buffers[0].hasRemaining() || buffers[1].hasRemaining() || buffers[2].hasRemaining())
+            byteCount += channel.write(buffers);
+        
+        return byteCount;
+    }
+
+    /**
+     * Converts signed 8-bit samples to unsigned into the data buffer, eight
+     * at a time by flipping the sign bit of each byte of a long.
+     */
+    private void toUnsigned( ByteBuffer body )
+    {
+        int length = body.remaining();
+        
+        if (data.capacity() < length)
+            data = ByteBuffer.allocate(Math.max(length, data.capacity() * 2));
+        
+        data.clear();
+        
+        int offset = body.position();
+        
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+            data.putLong(i, body.getLong(offset + i) ^ 0x8080808080808080L);
+        for (; i < length; ++i)
+            data.put(i, (byte)(body.get(offset + i) ^ 0x80));
+        
+        data.limit(length);
+    }
+
+    private static byte[] fourCc( String fourCc )
+    {
+        return new byte[] { (byte)fourCc.charAt(0), (byte)fourCc.charAt(1), (byte)fourCc.charAt(2), (byte)fourCc.charAt(3) };
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.io;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An Amiga disk image using the original (OFS) or fast (FFS) file system.
+ *
+ * The image is memory-mapped.  Files whose data blocks are contiguous on an
+ * FFS disk are returned as slices of the image rather than copies.  A
+ * corrupt image, such as one with a block pointer out of range or a cycle in
+ * a hash chain, is reported with an IOException.
+ *
+ * @author mindless
+ */
+public class AdfVolume implements Volume
+{
+    private static final int blockSize = 512;
+
+    private static final int hashTableSize = 72;
+
+    private static final int typeHeader = 2;
+    private static final int typeData = 8;
+    private static final int typeList = 16;
+
+    private static final int secondaryTypeRoot = 1;
+    private static final int secondaryTypeDirectory = 2;
+    private static final int secondaryTypeFile = -3;
+
+    private static final int offsetHighSeq = 8;
+    private static final int offsetTable = 24;
+    private static final int offsetByteSize = blockSize - 188;
+    private static final int offsetName = blockSize - 80;
+    private static final int offsetHashChain = blockSize - 16;
+    private static final int offsetExtension = blockSize - 8;
+    private static final int offsetSecondaryType = blockSize - 4;
+
+    private static final int ofsDataHeaderSize = 24;
+    private static final int offsetOfsDataSize = 12;
+
+    private static final Charset charset = Charset.forName("ISO-8859-1");
+
+    private final ByteBuffer image;
+
+    private final int blockCount;
+
+    private final int rootBlock;
+
+    private final boolean fastFileSystem;
+
+    private final boolean international;
+
+    public AdfVolume( Path path ) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            if (channel.size() % blockSize != 0 || channel.size() < 2 * blockSize || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("invalid disk image size");
+
+            image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        image.order(ByteOrder.BIG_ENDIAN);
+
+        if (image.get(0) != 'D' || image.get(1) != 'O' || image.get(2) != 'S')
+            throw new IOException("not an AmigaDOS disk image");
+
+        int flags = image.get(3);
+
+        if ((flags & ~0x07) != 0)
+            throw new IOException("unsupported AmigaDOS file system");
+
+        fastFileSystem = (flags & 0x01) != 0;
+        international = (flags & 0x06) != 0;
+
+        blockCount = image.capacity() / blockSize;
+        rootBlock = blockCount / 2;
+
+        if (getInt(rootBlock, 0) != typeHeader || getInt(rootBlock, offsetSecondaryType) != secondaryTypeRoot)
+            throw new IOException("invalid root block");
+    }
+
+    @Override
+    public boolean exists( String name ) throws IOException
+    {
+        int block = findBlock(name);
+
+        return block != 0 && getInt(block, offsetSecondaryType) == secondaryTypeFile;
+    }
+
+    @Override
+    public ByteBuffer read( String name ) throws IOException
+    {
+        int headerBlock = findBlock(name);
+
+        if (headerBlock == 0 || getInt(headerBlock, offsetSecondaryType) != secondaryTypeFile)
+            throw new FileNotFoundException(name);
+
+        int size = getInt(headerBlock, offsetByteSize);
+
+        int dataBlockSize = fastFileSystem ? blockSize : blockSize - ofsDataHeaderSize;
+
+        if (size < 0 || (long)size > (long)blockCount * dataBlockSize)
+            throw new IOException("invalid file size: " + name);
+
+        int[] dataBlocks = getDataBlocks(headerBlock, (size + dataBlockSize - 1) / dataBlockSize);
+
+        if (fastFileSystem && isContiguous(dataBlocks))
+        {
+            ByteBuffer slice = image.duplicate();
+            slice.position(dataBlocks.length == 0 ? 0 : dataBlocks[0] * blockSize);
+            slice.limit(slice.position() + size);
+            return slice.slice().asReadOnlyBuffer();
+        }
+
+        byte[] bytes = new byte[size];
+
+        int position = 0;
+
+        for (int dataBlock : dataBlocks)
+        {
+            ByteBuffer data = image.duplicate();
+
+            int length;
+
+            if (fastFileSystem)
+            {
+                length = Math.min(blockSize, size - position);
+
+                data.position(dataBlock * blockSize);
+            }
+            else
+            {
+                if (getInt(dataBlock, 0) != typeData)
+                    throw new IOException("invalid data block: " + name);
+
+                length = Math.min(getInt(dataBlock, offsetOfsDataSize), size - position);
+
+                if (length < 0 || length > dataBlockSize)
+                    throw new IOException("invalid data block: " + name);
+
+                data.position(dataBlock * blockSize + ofsDataHeaderSize);
+            }
+
+            data.get(bytes, position, length);
+
+            position += length;
+        }
+
+        if (position != size)
+            throw new IOException("truncated file: " + name);
+
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public long size( String name ) throws IOException
+    {
+        int headerBlock = findBlock(name);
+
+        if (headerBlock == 0 || getInt(headerBlock, offsetSecondaryType) != secondaryTypeFile)
+            throw new FileNotFoundException(name);
+
+        int size = getInt(headerBlock, offsetByteSize);
+
+        if (size < 0)
+            throw new IOException("invalid file size: " + name);
+
+        return size;
+    }
+
+    @Override
+    public List<String> list() throws IOException
+    {
+        ArrayList<String> names = new ArrayList<>();
+
+        listDirectory(rootBlock, "", names, 0);
+
+        return names;
+    }
+
+    @Override
+    public void close()
+    {
+        // mapped buffers are released by the garbage collector
+    }
+
+    private void listDirectory( int directoryBlock, String prefix, List<String> names, int depth ) throws IOException
+    {
+        if (depth > blockCount)
+            throw new IOException("directory cycle");
+
+        for (int i = 0; i < hashTableSize; ++i)
+        {
+            int chainLength = 0;
+
+            for (int block = getInt(directoryBlock, offsetTable + i * 4); block != 0; block = getInt(block, offsetHashChain))
+            {
+                checkBlock(block);
+
+                if (++chainLength > blockCount)
+                    throw new IOException("hash chain cycle");
+
+                String name = prefix + getName(block);
+
+                switch (getInt(block, offsetSecondaryType))
+                {
+                    case secondaryTypeFile:
+                        names.add(name);
+                        break;
+
+                    case secondaryTypeDirectory:
+                        listDirectory(block, name + "/", names, depth + 1);
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the header block of the named file or directory, or 0
+     */
+    private int findBlock( String name ) throws IOException
+    {
+        int block = rootBlock;
+
+        for (String component : name.split("/"))
+        {
+            if (component.isEmpty())
+                continue;
+
+            if (block != rootBlock && getInt(block, offsetSecondaryType) != secondaryTypeDirectory)
+                return 0;
+
+            int chainLength = 0;
+
+            for (block = getInt(block, offsetTable + hash(component) * 4); block != 0; block = getInt(block, offsetHashChain))
+            {
+                checkBlock(block);
+
+                if (++chainLength > blockCount)
+                    throw new IOException("hash chain cycle");
+
+                if (equalsIgnoreCase(getName(block), component))
+                    break;
+            }
+
+            if (block == 0)
+                return 0;
+        }
+
+        return block;
+    }
+
+    private int[] getDataBlocks( int headerBlock, int dataBlockCount ) throws IOException
+    {
+        int[] dataBlocks = new int[dataBlockCount];
+
+        int count = 0;
+
+        for (int block = headerBlock; count < dataBlockCount; block = getInt(block, offsetExtension))
+        {
+            if (block == 0)
+                throw new IOException("missing extension block");
+
+            checkBlock(block);
+
+            int type = getInt(block, 0);
+
+            if (block != headerBlock && type != typeList)
+                throw new IOException("invalid extension block");
+
+            int highSeq = getInt(block, offsetHighSeq);
+
+            if (highSeq < 0 || highSeq > hashTableSize)
+                throw new IOException("invalid block table");
+
+            // data block pointers are stored from the end of the table backwards
+            for (int i = 0; i < highSeq && count < dataBlockCount; ++i)
+            {
+                int dataBlock = getInt(block, offsetTable + (hashTableSize - 1 - i) * 4);
+
+                checkBlock(dataBlock);
+
+                dataBlocks[count++] = dataBlock;
+            }
+
+            if (highSeq == 0)
+                throw new IOException("empty block table");
+        }
+
+        return dataBlocks;
+    }
+
+    private static boolean isContiguous( int[] blocks )
+    {
+        for (int i = 1; i < blocks.length; ++i)
+            if (blocks[i] != blocks[i - 1] + 1)
+                return false;
+
+        return true;
+    }
+
+    private int hash( String name )
+    {
+        int hash = name.length();
+
+        for (int i = 0; i < name.length(); ++i)
+            hash = (hash * 13 + toUpperCase(name.charAt(i))) & 0x7ff;
+
+        return hash % hashTableSize;
+    }
+
+    private int toUpperCase( int c )
+    {
+        if (c >= 'a' && c <= 'z')
+            return c - ('a' - 'A');
+
+        if (international && c >= 0xe0 && c <= 0xfe && c != 0xf7)
+            return c - ('a' - 'A');
+
+        return c;
+    }
+
+    private boolean equalsIgnoreCase( String a, String b )
+    {
+        if (a.length() != b.length())
+            return false;
+
+        for (int i = 0; i < a.length(); ++i)
+            if (toUpperCase(a.charAt(i)) != toUpperCase(b.charAt(i)))
+                return false;
+
+        return true;
+    }
+
+    private String getName( int block )
+    {
+        int offset = block * blockSize + offsetName;
+
+        int length = Math.min(image.get(offset) & 0xff, 30);
+
+        byte[] bytes = new byte[length];
+
+        ByteBuffer name = image.duplicate();
+        name.position(offset + 1);
+        name.get(bytes);
+
+        return new String(bytes, charset);
+    }
+
+    private int getInt( int block, int offset )
+    {
+        return image.getInt(block * blockSize + offset);
+    }
+
+    private void checkBlock( int block ) throws IOException
+    {
+        if (block < 2 || block >= blockCount)
+            throw new IOException("block is out-of-range");
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes files produced by many threads into a single ZIP or tar archive.
+ *
+ * Producers hand entries to a dedicated writer thread.  Each entry carries a
+ * sequence number, and the archive lists entries in sequence order.  Entries
+ * wait in a fixed window of slots following the oldest entry not yet
+ * written, and a producer whose entry is past the window blocks until the
+ * writer catches up, so a slow early entry holds back at most a window of
+ * later ones.  Entry timestamps are fixed, so the same inputs always produce
+ * the same archive.  The archive only replaces the file at its path once it
+ * is complete, and a producer that fails part-way aborts the sink to leave
+ * the file as it was.
+ *
+ * @author mindless
+ */
+public class ArchiveSink implements Closeable
+{
+    public enum Format
+    {
+        ZIP,
+        TAR,
+    }
+
+    private static final Charset charset = Charset.forName("ISO-8859-1");
+
+    private static final long zipTime = new GregorianCalendar(1980, 0, 1).getTimeInMillis();
+
+    private final Format format;
+
+    private final AtomicFile file;
+
+    private final OutputStream out;
+
+    private final Object lock = new Object();
+
+    // indexed by sequence modulo the length
+    private final Entry[] window;
+
+    private long nextSequence;
+
+    private boolean ended;
+
+    private final Thread writerThread;
+
+    private volatile IOException failure;
+
+    private boolean closed;
+
+    /**
+     * @param windowSize the number of entries, from the oldest one not yet
+     *        written, that may be put before producers block
+     */
+    public ArchiveSink( Path path, Format format, int windowSize ) throws IOException
+    {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("windowSize is not positive");
+        
+        this.format = format;
+        this.window = new Entry[windowSize];
+        
+        file = new AtomicFile(path);
+        
+        OutputStream fileOut = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 64 * 1024);
+        
+        out = format == Format.ZIP ? new ZipOutputStream(fileOut) : fileOut;
+        
+        writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        }, "archive writer");
+        writerThread.start();
+    }
+
+    /**
+     * @return the format implied by the file extension of path
+     */
+    public static Format getFormat( Path path )
+    {
+        return path.getFileName().toString().toLowerCase().endsWith(".tar") ?
+                Format.TAR :
+                Format.ZIP;
+    }
+
+    /**
+     * Blocks until an entry with the sequence number fits in the window, or
+     * until writing has failed.  A producer that waits here before starting
+     * the work for an entry never holds on to a finished entry that can't
+     * be put.
+     */
+    public void awaitWindow( long sequence ) throws InterruptedException
+    {
+        synchronized (lock)
+        {
+            while (sequence >= nextSequence + window.length && failure == null)
+                lock.wait();
+        }
+    }
+
+    /**
+     * Puts an entry, blocking while it is past the window.  Every sequence
+     * number from 0 up must eventually be either put or skipped.  Once
+     * writing has failed, entries are discarded.
+     */
+    public void put( long sequence, String name, byte[] data ) throws InterruptedException
+    {
+        if (name == null || data == null)
+            throw new IllegalArgumentException("entry is null");
+        
+        put(new Entry(sequence, name, data));
+    }
+
+    /**
+     * Marks a sequence number as having no entry.
+     */
+    public void skip( long sequence ) throws InterruptedException
+    {
+        put(new Entry(sequence, null, null));
+    }
+
+    private void put( Entry entry ) throws InterruptedException
+    {
+        if (entry.sequence < 0)
+            throw new IllegalArgumentException("sequence is negative");
+        
+        synchronized (lock)
+        {
+            awaitWindow(entry.sequence);
+            
+            if (failure != null)
+                return;
+            
+            int slot = (int)(entry.sequence % window.length);
+            
+            if (entry.sequence < nextSequence || window[slot] != null)
+                throw new IllegalArgumentException("sequence was already put");
+            
+            window[slot] = entry;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops writing and discards the archive, leaving the file at its path
+     * as it was.  Producers waiting for the window are released, and their
+     * entries are discarded.  Closing the sink afterwards has no effect.
+     */
+    public void abort()
+    {
+        if (closed)
+            return;
+        
+        closed = true;
+        
+        fail(new IOException("archive aborted"));
+        
+        boolean interrupted = false;
+        
+        // the file is only discarded once the writer is done with it
+        while (writerThread.isAlive())
+        {
+            try
+            {
+                writerThread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Waits for all queued entries to be written and finishes the archive.
+     *
+     * @throws IOException if writing any entry failed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        
+        closed = true;
+        
+        synchronized (lock)
+        {
+            ended = true;
+            lock.notifyAll();
+        }
+        
+        try
+        {
+            writerThread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            writerThread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        
+        if (failure != null)
+            throw failure;
+    }
+
+    private void write()
+    {
+        try
+        {
+            for (;;)
+            {
+                Entry entry;
+                
+                synchronized (lock)
+                {
+                    int slot = (int)(nextSequence % window.length);
+                    
+                    while ((entry = window[slot]) == null && !ended && failure == null)
+                        lock.wait();
+                    
+                    // aborted
+                    if (failure != null)
+                        throw failure;
+                    
+                    if (entry == null)
+                    {
+                        for (Entry early : window)
+                            if (early != null)
+                                throw new IOException("missing archive entry " + nextSequence);
+                        
+                        break;
+                    }
+                }
+                
+                if (entry.name != null)
+                    writeEntry(entry);
+                
+                // the slot is freed only once the entry is written, so the
+                // window bounds the entries held in memory
+                synchronized (lock)
+                {
+                    window[(int)(nextSequence % window.length)] = null;
+                    ++nextSequence;
+                    lock.notifyAll();
+                }
+            }
+            
+            finish();
+            out.flush();
+            file.commit();
+        }
+        catch (IOException ex)
+        {
+            fail(ex);
+        }
+        catch (InterruptedException ex)
+        {
+            fail(new InterruptedIOException());
+        }
+        finally
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException ex)
+            {
+                fail(ex);
+            }
+            
+            try
+            {
+                // discards an archive that wasn't finished
+                file.close();
+            }
+            catch (IOException ex)
+            {
+                fail(ex);
+            }
+        }
+    }
+
+    /**
+     * Records the first failure and releases producers waiting for the
+     * window, since their entries will be discarded.
+     */
+    private void fail( IOException ex )
+    {
+        synchronized (lock)
+        {
+            if (failure == null)
+                failure = ex;
+            
+            lock.notifyAll();
+        }
+    }
+
+    private void writeEntry( Entry entry ) throws IOException
+    {
+        switch (format)
+        {
+            case ZIP:
+                ZipEntry zipEntry = new ZipEntry(entry.name);
+                zipEntry.setTime(zipTime);
+                
+                ZipOutputStream zipOut = (ZipOutputStream)out;
+                zipOut.putNextEntry(zipEntry);
+                zipOut.write(entry.data);
+                zipOut.closeEntry();
+                break;
+            
+            case TAR:
+                out.write(createTarHeader(entry.name, entry.data.length));
+                out.write(entry.data);
+                out.write(new byte[(512 - entry.data.length % 512) % 512]);
+                break;
+        }
+    }
+
+    private void finish() throws IOException
+    {
+        switch (format)
+        {
+            case ZIP:
+                ((ZipOutputStream)out).finish();
+                break;
+            
+            case TAR:
+                out.write(new byte[2 * 512]);
+                break;
+        }
+    }
+
+    private static byte[] createTarHeader( String name, long size ) throws IOException
+    {
+        byte[] nameBytes = name.getBytes(charset);
+        
+        if (nameBytes.length > 100)
+            throw new IOException("name is too long for tar: " + name);
+        
+        byte[] header = new byte[512];
+        
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(header, 100, 8, 0644);  // mode
+        putOctal(header, 108, 8, 0);     // uid
+        putOctal(header, 116, 8, 0);     // gid
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, 0);    // mtime
+        header[156] = '0';               // regular file
+        System.arraycopy("ustar\u000000".getBytes(charset), 0, header, 257, 8);
+        
+        Arrays.fill(header, 148, 156, (byte)' ');
+        
+        int checksum = 0;
+        for (byte b : header)
+            checksum += b & 0xff;
+        
+        putOctal(header, 148, 7, checksum);
+        
+        return header;
+    }
+
+    private static void putOctal( byte[] header, int offset, int length, long value )
+    {
+        String octal = Long.toOctalString(value);
+        
+        for (int i = 0; i < length - 1; ++i)
+        {
+            int digit = octal.length() - (length - 1) + i;
+            
+            header[offset + i] = (byte)(digit < 0 ? '0' : octal.charAt(digit));
+        }
+        
+        header[offset + length - 1] = 0;
+    }
+
+    private static class Entry
+    {
+        private final long sequence;
+        private final String name;
+        private final byte[] data;
+        
+        private Entry( long sequence, String name, byte[] data )
+        {
+            this.sequence = sequence;
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * A file that is written to a temporary file beside it and only replaces it,
+ * in one atomic rename, once the contents are synced to disk.  A crash at any
+ * point leaves either the old file or the new one, never part of one.
+ *
+ * @author mindless
+ */
+public class AtomicFile implements Closeable
+{
+    private final Path path;
+
+    private final Path tempPath;
+
+    private final FileChannel channel;
+
+    private boolean committed;
+
+    public AtomicFile( Path path ) throws IOException
+    {
+        this.path = path.toAbsolutePath();
+        
+        tempPath = Files.createTempFile(this.path.getParent(), "." + path.getFileName(), ".tmp");
+        
+        // a temporary file is created private, which the file shouldn't be
+        if (Files.getFileStore(tempPath).supportsFileAttributeView(PosixFileAttributeView.class))
+            Files.setPosixFilePermissions(tempPath, Files.exists(this.path) ?
+                    Files.getPosixFilePermissions(this.path) :
+                    PosixFilePermissions.fromString("rw-r--r--"));
+        
+        channel = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * @return the channel to write the contents to
+     */
+    public FileChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Syncs the contents and renames the temporary file over the file.
+     */
+    public void commit() throws IOException
+    {
+        channel.force(true);
+        channel.close();
+        
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        
+        committed = true;
+        
+        syncDirectory(path.getParent());
+    }
+
+    /**
+     * Discards the contents unless they were committed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (committed)
+            return;
+        
+        channel.close();
+        Files.deleteIfExists(tempPath);
+    }
+
+    /**
+     * Syncs the entries of a directory, so that a rename in it survives a
+     * crash, where the platform allows it.
+     */
+    static void syncDirectory( Path directory )
+    {
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ))
+        {
+            directoryChannel.force(true);
+        }
+        catch (IOException ex)
+        {
+            // not every platform can open a directory
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * An append-only record of the outputs of a batch run and the inputs they
+ * were made from, so that a run that was killed can be resumed without
+ * redoing finished work.
+ *
+ * Each line holds the hash of an input and the name of the output made from
+ * it, and is synced to disk before {@link #record} returns.  A line cut short
+ * by a crash is ignored when the journal is opened again.
+ *
+ * @author mindless
+ */
+public class BatchJournal implements Closeable
+{
+    private static final Charset charset = Charset.forName("UTF-8");
+
+    private final HashMap<String, String> hashes = new HashMap<>();
+
+    private final FileChannel channel;
+
+    public BatchJournal( Path path ) throws IOException
+    {
+        if (Files.exists(path))
+        {
+            byte[] contents = Files.readAllBytes(path);
+            
+            // only complete lines were recorded
+            int end = contents.length;
+            while (end > 0 && contents[end - 1] != '\n')
+                --end;
+            
+            for (String line : new String(contents, 0, end, charset).split("\n"))
+            {
+                int separatorIndex = line.indexOf(' ');
+                
+                if (separatorIndex > 0)
+                    hashes.put(line.substring(separatorIndex + 1), line.substring(0, separatorIndex));
+            }
+            
+            // drop a partial line so that the next one starts cleanly
+            try (FileChannel truncateChannel = FileChannel.open(path, StandardOpenOption.WRITE))
+            {
+                truncateChannel.truncate(end);
+            }
+        }
+        
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        
+        AtomicFile.syncDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * @return a hex SHA-256 hash of the remaining bytes of the buffers
+     */
+    public static String hash( ByteBuffer... buffers )
+    {
+        MessageDigest digest;
+        
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+        
+        for (ByteBuffer buffer : buffers)
+            digest.update(buffer.duplicate());
+        
+        StringBuilder hex = new StringBuilder();
+        
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b & 0xff));
+        
+        return hex.toString();
+    }
+
+    /**
+     * @return whether the output was recorded as made from an input with the
+     *         given hash
+     */
+    public synchronized boolean isDone( String outputName, String inputHash )
+    {
+        return inputHash.equals(hashes.get(outputName));
+    }
+
+    /**
+     * Records that an output was made from an input with the given hash.
+     */
+    public synchronized void record( String outputName, String inputHash ) throws IOException
+    {
+        if (outputName.indexOf('\n') >= 0)
+            throw new IllegalArgumentException("outputName contains a line break");
+        
+        ByteBuffer line = ByteBuffer.wrap((inputHash + " " + outputName + "\n").getBytes(charset));
+        
+        while (line.hasRemaining())
+            channel.write(line);
+        
+        channel.force(false);
+        
+        hashes.put(outputName, inputHash);
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        channel.close();
+    }
+}
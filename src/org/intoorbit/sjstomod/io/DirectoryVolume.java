@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.io;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author mindless
+ */
+public class DirectoryVolume implements Volume
+{
+    private final Path root;
+
+    public DirectoryVolume( Path root )
+    {
+        this.root = root;
+    }
+
+    @Override
+    public boolean exists( String name )
+    {
+        return Files.isRegularFile(root.resolve(name));
+    }
+
+    @Override
+    public ByteBuffer read( String name ) throws IOException
+    {
+        Path path = root.resolve(name);
+
+        if (!Files.isRegularFile(path))
+            throw new FileNotFoundException(path.toString());
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public long size( String name ) throws IOException
+    {
+        Path path = root.resolve(name);
+
+        if (!Files.isRegularFile(path))
+            throw new FileNotFoundException(path.toString());
+
+        return Files.size(path);
+    }
+
+    @Override
+    public List<String> list() throws IOException
+    {
+        final ArrayList<String> names = new ArrayList<>();
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+            {
+                if (attrs.isRegularFile())
+                    names.add(root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"));
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return names;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A read-only collection of files, such as a directory, an archive or a disk
+ * image.
+ *
+ * File names are relative to the root of the volume and use '/' to separate
+ * directories.
+ *
+ * @author mindless
+ */
+public interface Volume extends Closeable
+{
+    boolean exists( String name ) throws IOException;
+
+    /**
+     * @return the contents of the file; the buffer is read-only and may share
+     *         memory with the volume, so it is only valid until the volume is
+     *         closed
+     * @throws java.io.FileNotFoundException if the file does not exist
+     */
+    ByteBuffer read( String name ) throws IOException;
+
+    /**
+     * @return the size of the file in bytes, without reading it
+     * @throws java.io.FileNotFoundException if the file does not exist
+     */
+    long size( String name ) throws IOException;
+
+    /**
+     * @return the names of all files in the volume
+     */
+    List<String> list() throws IOException;
+}
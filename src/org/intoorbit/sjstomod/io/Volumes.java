@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ *
+ * @author mindless
+ */
+public class Volumes
+{
+    private Volumes()
+    {
+    }
+
+    /**
+     * Opens a directory, an ADF disk image or a ZIP archive as a volume.
+     */
+    public static Volume open( Path path ) throws IOException
+    {
+        if (Files.isDirectory(path))
+            return new DirectoryVolume(path);
+
+        byte[] magic = new byte[4];
+        int magicLength;
+
+        try (InputStream in = Files.newInputStream(path))
+        {
+            magicLength = in.read(magic);
+        }
+
+        if (magicLength == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4)
+            return new ZipVolume(path);
+
+        if (magicLength >= 3 && magic[0] == 'D' && magic[1] == 'O' && magic[2] == 'S')
+            return new AdfVolume(path);
+
+        throw new IOException("unrecognized volume: " + path);
+    }
+
+    /**
+     * @return the directory part of name, including the trailing '/', or ""
+     */
+    public static String getDirectory( String name )
+    {
+        return name.substring(0, name.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return the file name part of name
+     */
+    public static String getFileName( String name )
+    {
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.io;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.intoorbit.sjstomod.ParseBudget;
+
+/**
+ * A ZIP archive.  Entries are decompressed into memory when read, up to the
+ * size a {@link ParseBudget} allows.
+ *
+ * @author mindless
+ */
+public class ZipVolume implements Volume
+{
+    private static final int chunkSize = 64 * 1024;
+
+    private final ZipFile zipFile;
+
+    private final ParseBudget budget;
+
+    public ZipVolume( Path path ) throws IOException
+    {
+        this(path, ParseBudget.standard);
+    }
+
+    /**
+     * @param budget limits the size of an entry that is read
+     */
+    public ZipVolume( Path path, ParseBudget budget ) throws IOException
+    {
+        zipFile = new ZipFile(path.toFile());
+        this.budget = budget;
+    }
+
+    @Override
+    public boolean exists( String name )
+    {
+        return getEntry(name) != null;
+    }
+
+    @Override
+    public ByteBuffer read( String name ) throws IOException
+    {
+        ZipEntry entry = getEntry(name);
+
+        if (entry == null)
+            throw new FileNotFoundException(name);
+
+        if (entry.getSize() < 0)
+            throw new IOException("entry has no size: " + name);
+
+        budget.checkBytes(entry.getSize());
+
+        int size = (int)entry.getSize();
+
+        // the declared size may be a lie, so the buffer only grows as the
+        // bytes arrive
+        byte[] bytes = new byte[Math.min(size, chunkSize)];
+        int position = 0;
+
+        try (InputStream in = zipFile.getInputStream(entry))
+        {
+            while (true)
+            {
+                if (position == bytes.length)
+                {
+                    if (position == size)
+                    {
+                        if (in.read() != -1)
+                            throw new IOException("entry is longer than its size: " + name);
+
+                        break;
+                    }
+
+                    bytes = Arrays.copyOf(bytes, (int)Math.min(size, (long)position + chunkSize));
+                }
+
+                int length = in.read(bytes, position, bytes.length - position);
+
+                if (length < 0)
+                    throw new EOFException("entry is shorter than its size: " + name);
+
+                position += length;
+            }
+        }
+
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public long size( String name ) throws IOException
+    {
+        ZipEntry entry = getEntry(name);
+
+        if (entry == null)
+            throw new FileNotFoundException(name);
+
+        if (entry.getSize() < 0)
+            throw new IOException("entry has no size: " + name);
+
+        return entry.getSize();
+    }
+
+    @Override
+    public List<String> list()
+    {
+        ArrayList<String> names = new ArrayList<>();
+
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); )
+        {
+            ZipEntry entry = entries.nextElement();
+
+            if (!entry.isDirectory())
+                names.add(entry.getName());
+        }
+
+        return names;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        zipFile.close();
+    }
+
+    private ZipEntry getEntry( String name )
+    {
+        ZipEntry entry = zipFile.getEntry(name);
+
+        if (entry != null && !entry.isDirectory())
+            return entry;
+
+        // the games' file names are case-insensitive
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); )
+        {
+            entry = entries.nextElement();
+
+            if (!entry.isDirectory() && entry.getName().equalsIgnoreCase(name))
+                return entry;
+        }
+
+        return null;
+    }
+}
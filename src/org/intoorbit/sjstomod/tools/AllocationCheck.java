@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.intoorbit.sjstomod.Iff8svx;
+import org.intoorbit.sjstomod.ParseBudget;
+import org.intoorbit.sjstomod.PatternLayoutOptimizer;
+import org.intoorbit.sjstomod.ProtrackerModule;
+import org.intoorbit.sjstomod.SoundPlayerModule;
+
+/**
+ * Measures the bytes allocated by each conversion step on synthetic inputs
+ * of fixed size and checks them against a budget file, so that allocation
+ * regressions fail the build.
+ *
+ * The budget file is a properties file mapping each operation to the bytes
+ * it may allocate.  With -write, the file is rewritten from the current
+ * measurements plus a quarter for headroom.
+ *
+ * @author mindless
+ */
+public class AllocationCheck
+{
+    private static final int warmUpCount = 200;
+
+    private static final int measureCount = 50;
+
+    private static final int stepCount = 1024;
+
+    private static final int sampleLength = 8192;
+
+    private AllocationCheck()
+    {
+    }
+
+    public static void main( String[] args ) throws IOException
+    {
+        boolean write = args.length == 2 && args[0].equals("-write");
+        
+        if (args.length != (write ? 2 : 1))
+        {
+            System.err.println("usage: AllocationCheck [-write] <budget.properties>");
+            System.exit(-1);
+        }
+        
+        Path budgetPath = Paths.get(args[args.length - 1]);
+        
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        
+        if (!(threads instanceof com.sun.management.ThreadMXBean) ||
+                !((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported())
+        {
+            System.err.println("allocation measurement is unsupported; skipped");
+            return;
+        }
+        
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        
+        Map<String, Long> measurements = measure(allocations);
+        
+        if (write)
+        {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(budgetPath), false, "ISO-8859-1"))
+            {
+                out.println("# bytes allocated per operation; rewrite with AllocationCheck -write");
+                
+                for (Map.Entry<String, Long> measurement : measurements.entrySet())
+                    out.printf("%s=%d\n", measurement.getKey(), measurement.getValue() * 5 / 4);
+            }
+            
+            return;
+        }
+        
+        Properties budget = new Properties();
+        
+        try (InputStream in = Files.newInputStream(budgetPath))
+        {
+            budget.load(in);
+        }
+        
+        boolean exceeded = false;
+        
+        System.out.println("operation   allocated   budget");
+        
+        for (Map.Entry<String, Long> measurement : measurements.entrySet())
+        {
+            String limit = budget.getProperty(measurement.getKey());
+            
+            if (limit == null)
+            {
+                System.out.printf("%-11s %-11d none\n", measurement.getKey(), measurement.getValue());
+                exceeded = true;
+                continue;
+            }
+            
+            boolean over = measurement.getValue() > Long.parseLong(limit.trim());
+            
+            System.out.printf("%-11s %-11d %s%s\n", measurement.getKey(), measurement.getValue(), limit.trim(), over ? "  EXCEEDED" : "");
+            
+            exceeded |= over;
+        }
+        
+        if (exceeded)
+            System.exit(1);
+    }
+
+    private static Map<String, Long> measure( final com.sun.management.ThreadMXBean allocations ) throws IOException
+    {
+        final ByteBuffer moduleBytes = SyntheticFiles.createModule(0, stepCount);
+        final ByteBuffer sampleBytes = SyntheticFiles.createSample(0, sampleLength);
+        
+        final ProtrackerModule.Sample[] ptSamples = new ProtrackerModule.Sample[16];
+        for (int i = 0; i < 4; ++i)
+            ptSamples[i] = Iff8svx.loadForm(sampleBytes, ParseBudget.standard).toProtracker();
+        
+        final SoundPlayerModule module = SoundPlayerModule.load(moduleBytes, ParseBudget.standard);
+        final ProtrackerModule ptModule = module.toProtracker(ptSamples, new PatternLayoutOptimizer(0));
+        
+        final ByteBuffer saveBuffer = ByteBuffer.allocate(64 * 1024);
+        final WritableByteChannel nullChannel = new NullChannel();
+        
+        LinkedHashMap<String, Long> measurements = new LinkedHashMap<>();
+        
+        measurements.put("load", measure(allocations, new Operation()
+        {
+            @Override
+            public Object run() throws IOException
+            {
+                return SoundPlayerModule.load(moduleBytes, ParseBudget.standard);
+            }
+        }));
+        
+        measurements.put("translate", measure(allocations, new Operation()
+        {
+            @Override
+            public Object run()
+            {
+                return module.toProtracker(ptSamples, new PatternLayoutOptimizer(0));
+            }
+        }));
+        
+        measurements.put("save", measure(allocations, new Operation()
+        {
+            @Override
+            public Object run() throws IOException
+            {
+                return ptModule.save(nullChannel, saveBuffer);
+            }
+        }));
+        
+        measurements.put("decode8svx", measure(allocations, new Operation()
+        {
+            @Override
+            public Object run() throws IOException
+            {
+                return Iff8svx.loadForm(sampleBytes, ParseBudget.standard).toProtracker();
+            }
+        }));
+        
+        return measurements;
+    }
+
+    /**
+     * @return the bytes allocated by one run of the operation, averaged over
+     *         several runs once the JIT has settled
+     */
+    private static long measure( com.sun.management.ThreadMXBean allocations, Operation operation ) throws IOException
+    {
+        long threadId = Thread.currentThread().getId();
+        
+        Object sink = null;
+        
+        for (int i = 0; i < warmUpCount; ++i)
+            sink = operation.run();
+        
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        
+        for (int i = 0; i < measureCount; ++i)
+            sink = operation.run();
+        
+        long after = allocations.getThreadAllocatedBytes(threadId);
+        
+        if (sink == null)
+            throw new IllegalStateException();
+        
+        return (after - before) / measureCount;
+    }
+
+    private interface Operation
+    {
+        Object run() throws IOException;
+    }
+
+    private static class NullChannel implements WritableByteChannel
+    {
+        @Override
+        public int write( ByteBuffer buffer )
+        {
+            int length = buffer.remaining();
+            
+            buffer.position(buffer.limit());
+            
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
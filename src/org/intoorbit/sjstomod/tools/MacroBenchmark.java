@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.intoorbit.sjstomod.Converter;
+import org.intoorbit.sjstomod.Main;
+import org.intoorbit.sjstomod.io.DirectoryVolume;
+import org.intoorbit.sjstomod.io.Volume;
+
+/**
+ * Runs the command-line converter over a generated corpus in three ways --
+ * a JVM per file, a single batch JVM, and a warm in-process converter -- and
+ * reports wall time, CPU time, peak resident set size and files per second
+ * for each, so that start-up and I/O costs can be compared between builds.
+ *
+ * CPU time and peak RSS of child JVMs are reported by the children
+ * themselves when they exit; peak RSS is read from /proc and is only
+ * available on Linux.
+ *
+ * @author mindless
+ */
+public class MacroBenchmark
+{
+    private static final Charset charset = Charset.forName("ISO-8859-1");
+
+    private static final String childReportPrefix = "macrobenchmark:";
+
+    private MacroBenchmark()
+    {
+    }
+
+    public static void main( String[] args ) throws IOException, InterruptedException
+    {
+        if (args.length >= 1 && args[0].equals("-child"))
+        {
+            runChild(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
+        int fileCount = 100;
+        int stepCount = 512;
+        
+        int argIndex = 0;
+        
+        try
+        {
+            for (; argIndex < args.length && args[argIndex].startsWith("-"); ++argIndex)
+            {
+                switch (args[argIndex])
+                {
+                    case "-n":
+                        fileCount = Integer.parseInt(args[++argIndex]);
+                        break;
+                        
+                    case "-steps":
+                        stepCount = Integer.parseInt(args[++argIndex]);
+                        break;
+                        
+                    default:
+                        throw new IllegalArgumentException(args[argIndex]);
+                }
+            }
+        }
+        catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex)
+        {
+            argIndex = -1;
+        }
+        
+        if (argIndex != args.length - 1 || fileCount < 1 || fileCount > 255 || stepCount < 1)
+        {
+            System.err.println("usage: MacroBenchmark [-n <fileCount>] [-steps <stepCount>] <workDirectory>");
+            System.err.println();
+            System.err.println("  -n             modules in the corpus, from 1 to 255 (default 100)");
+            System.err.println("  -steps         steps per module (default 512)");
+            System.exit(-1);
+        }
+        
+        Path workDirectory = Paths.get(args[argIndex]);
+        Path corpusDirectory = workDirectory.resolve("corpus");
+        Path outputDirectory = workDirectory.resolve("output");
+        
+        Files.createDirectories(corpusDirectory);
+        Files.createDirectories(outputDirectory);
+        
+        List<Path> modulePaths = createCorpus(corpusDirectory, fileCount, stepCount);
+        
+        ArrayList<Measurement> measurements = new ArrayList<>();
+        
+        measurements.add(measurePerFileJvm(modulePaths, outputDirectory));
+        measurements.add(measureBatchJvm(modulePaths, outputDirectory));
+        measurements.add(measureWarm(modulePaths, outputDirectory));
+        
+        report(measurements, fileCount, System.out);
+        
+        try (PrintStream out = new PrintStream(Files.newOutputStream(workDirectory.resolve("report.txt")), false, "ISO-8859-1"))
+        {
+            report(measurements, fileCount, out);
+        }
+    }
+
+    private static List<Path> createCorpus( Path directory, int fileCount, int stepCount ) throws IOException
+    {
+        ArrayList<String> sampleNames = new ArrayList<>();
+        for (int i = 1; i <= 4; ++i)
+        {
+            String sampleName = "sample" + i;
+            write(directory.resolve(sampleName), SyntheticFiles.createSample(i, 4096 * i));
+            sampleNames.add(sampleName);
+        }
+        
+        ArrayList<String> moduleNames = new ArrayList<>();
+        ArrayList<Path> modulePaths = new ArrayList<>();
+        for (int i = 0; i < fileCount; ++i)
+        {
+            String moduleName = String.format("tune%03d", i);
+            Path modulePath = directory.resolve(moduleName);
+            write(modulePath, SyntheticFiles.createModule(i, stepCount));
+            moduleNames.add(moduleName);
+            modulePaths.add(modulePath);
+        }
+        
+        write(directory.resolve("leveldata"), SyntheticFiles.createLevelData(moduleNames, sampleNames));
+        
+        return modulePaths;
+    }
+
+    private static void write( Path path, ByteBuffer bytes ) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            bytes = bytes.duplicate();
+            
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        }
+    }
+
+    private static Measurement measurePerFileJvm( List<Path> modulePaths, Path outputDirectory ) throws IOException, InterruptedException
+    {
+        Measurement measurement = new Measurement("per-file-jvm");
+        
+        long start = System.nanoTime();
+        
+        for (Path modulePath : modulePaths)
+        {
+            Path outputPath = outputDirectory.resolve(modulePath.getFileName() + ".mod");
+            
+            measurement.add(runJvm(modulePath.toString(), outputPath.toString()));
+        }
+        
+        measurement.wallNanos = System.nanoTime() - start;
+        
+        return measurement;
+    }
+
+    private static Measurement measureBatchJvm( List<Path> modulePaths, Path outputDirectory ) throws IOException, InterruptedException
+    {
+        Measurement measurement = new Measurement("batch-jvm");
+        
+        ArrayList<String> arguments = new ArrayList<>();
+        arguments.add("-batch");
+        arguments.add(outputDirectory.resolve("batch.zip").toString());
+        for (Path modulePath : modulePaths)
+            arguments.add(modulePath.toString());
+        
+        long start = System.nanoTime();
+        
+        measurement.add(runJvm(arguments.toArray(new String[arguments.size()])));
+        
+        measurement.wallNanos = System.nanoTime() - start;
+        
+        return measurement;
+    }
+
+    /**
+     * Converts the corpus once to warm up, then again to measure.
+     */
+    private static Measurement measureWarm( List<Path> modulePaths, Path outputDirectory ) throws IOException
+    {
+        Measurement measurement = new Measurement("warm");
+        
+        Converter converter = new Converter.Builder().build();
+        
+        Path outputPath = outputDirectory.resolve("warm.mod");
+        
+        try (Volume volume = new DirectoryVolume(modulePaths.get(0).getParent()))
+        {
+            for (int pass = 0; pass < 2; ++pass)
+            {
+                long start = System.nanoTime();
+                long startCpuNanos = getProcessCpuNanos();
+                
+                for (Path modulePath : modulePaths)
+                {
+                    try (WritableByteChannel out = FileChannel.open(outputPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+                    {
+                        Converter.Result result = converter.convert(volume, modulePath.getFileName().toString(), out);
+                        
+                        if (!result.isSuccess())
+                            throw new IOException(modulePath + ": " + result.getError());
+                    }
+                }
+                
+                measurement.wallNanos = System.nanoTime() - start;
+                measurement.cpuNanos = getProcessCpuNanos() - startCpuNanos;
+            }
+        }
+        
+        measurement.peakRssKilobytes = getPeakRssKilobytes();
+        
+        return measurement;
+    }
+
+    /**
+     * Runs the converter in a child JVM.
+     * 
+     * @return the CPU time and peak RSS reported by the child
+     */
+    private static long[] runJvm( String... arguments ) throws IOException, InterruptedException
+    {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MacroBenchmark.class.getName());
+        command.add("-child");
+        command.addAll(Arrays.asList(arguments));
+        
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        
+        Process process = processBuilder.start();
+        
+        long[] usage = null;
+        
+        try (BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream(), charset)))
+        {
+            String line;
+            while ((line = err.readLine()) != null)
+            {
+                if (line.startsWith(childReportPrefix))
+                {
+                    String[] fields = line.substring(childReportPrefix.length()).trim().split(" ");
+                    usage = new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) };
+                }
+                else
+                {
+                    System.err.println(line);
+                }
+            }
+        }
+        
+        if (process.waitFor() != 0)
+            throw new IOException("converter failed: " + Arrays.toString(arguments));
+        
+        if (usage == null)
+            throw new IOException("converter didn't report its resource usage");
+        
+        return usage;
+    }
+
+    /**
+     * Runs the command-line converter and reports its resource usage on
+     * standard error when the JVM exits, however it exits.
+     */
+    private static void runChild( String[] args )
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                System.err.printf("%s %d %d\n", childReportPrefix, getProcessCpuNanos(), getPeakRssKilobytes());
+                System.err.flush();
+            }
+        });
+        
+        Main.main(args);
+    }
+
+    private static long getProcessCpuNanos()
+    {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        
+        return -1;
+    }
+
+    /**
+     * @return the peak resident set size of this process, or -1 if unknown
+     */
+    private static long getPeakRssKilobytes()
+    {
+        try
+        {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), charset))
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+        }
+        catch (IOException | NumberFormatException ex)
+        {
+            // not Linux
+        }
+        
+        return -1;
+    }
+
+    private static void report( List<Measurement> measurements, int fileCount, PrintStream out )
+    {
+        out.printf("files: %d\n", fileCount);
+        out.println();
+        out.println("mode          wall ms   cpu ms    peak rss kB  files/s");
+        
+        for (Measurement measurement : measurements)
+        {
+            out.printf("%-13s %-9d %-9d %-12d %.1f\n",
+                    measurement.name,
+                    measurement.wallNanos / 1000000,
+                    measurement.cpuNanos / 1000000,
+                    measurement.peakRssKilobytes,
+                    fileCount / (measurement.wallNanos / 1e9));
+        }
+    }
+
+    private static class Measurement
+    {
+        private final String name;
+
+        private long wallNanos;
+
+        private long cpuNanos;
+
+        private long peakRssKilobytes = -1;
+
+        private Measurement( String name )
+        {
+            this.name = name;
+        }
+
+        /**
+         * Adds the CPU time of a child JVM; peak RSS is the largest of any
+         * child.
+         */
+        private void add( long[] usage )
+        {
+            cpuNanos += usage[0];
+            peakRssKilobytes = Math.max(peakRssKilobytes, usage[1]);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Generates deterministic SJS modules, 8SVX samples and 'leveldata' files
+ * for the tools that measure conversion.
+ *
+ * @author mindless
+ */
+class SyntheticFiles
+{
+    private static final Charset charset = Charset.forName("ISO-8859-1");
+
+    private SyntheticFiles()
+    {
+    }
+
+    /**
+     * @return a four-voice module using samples 1 to 4, whose voices all
+     *         repeat after stepCount rows
+     */
+    static ByteBuffer createModule( int seed, int stepCount )
+    {
+        ByteBuffer module = ByteBuffer.allocate(3 + stepCount * 4 * 3);
+        
+        module.put((byte)(3000 & 0xff));
+        module.put((byte)(3000 >> 8));
+        module.put((byte)0x0f);
+        
+        for (int s = 0; s < stepCount; ++s)
+        {
+            for (int v = 0; v < 4; ++v)
+            {
+                boolean hasNote = (s + v + seed) % 3 != 0;
+                
+                module.put((byte)(hasNote ? 1 + (s * 7 + v * 5 + seed) % 36 : 0));
+                module.put((byte)(hasNote ? 1 + v : 0));
+                module.put((byte)(s == stepCount - 1 ? 0xde : 0));
+            }
+        }
+        
+        module.flip();
+        
+        return module.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return an 8SVX sample whose second half loops
+     */
+    static ByteBuffer createSample( int seed, int length )
+    {
+        ByteBuffer sample = ByteBuffer.allocate(12 + 8 + 20 + 8 + length);
+        
+        sample.put("FORM".getBytes(charset)).putInt(sample.capacity() - 8);
+        sample.put("8SVX".getBytes(charset));
+        
+        sample.put("VHDR".getBytes(charset)).putInt(20);
+        sample.putInt(length / 2).putInt(length / 2).putInt(32);
+        sample.putShort((short)8363).put((byte)1).put((byte)0).putInt(0x10000);
+        
+        sample.put("BODY".getBytes(charset)).putInt(length);
+        for (int i = 0; i < length; ++i)
+            sample.put((byte)(i * (37 + seed)));
+        
+        sample.flip();
+        
+        return sample.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a 'leveldata' in which every module uses the given samples, in
+     *         order, for its first sample slots
+     */
+    static ByteBuffer createLevelData( List<String> moduleNames, List<String> sampleNames )
+    {
+        int sampleTableEnd = 0x1d38 + sampleNames.size() * (11 + 1);
+        
+        ByteBuffer levelData = ByteBuffer.allocate(sampleTableEnd + 16 + 12 + moduleNames.size() * (12 + 16));
+        
+        for (int i = 0; i < sampleNames.size(); ++i)
+        {
+            levelData.position(0x1d38 + i * (11 + 1));
+            levelData.put(sampleNames.get(i).getBytes(charset));
+        }
+        
+        // module entries run backwards from the end
+        for (int i = 0; i < moduleNames.size(); ++i)
+        {
+            levelData.position(levelData.capacity() - (i + 1) * (12 + 16));
+            levelData.put(moduleNames.get(i).getBytes(charset));
+            
+            levelData.position(levelData.capacity() - (i + 1) * (12 + 16) + 12);
+            for (int s = 0; s < sampleNames.size() && s < 16; ++s)
+                levelData.put((byte)(s + 1));
+        }
+        
+        levelData.clear();
+        
+        return levelData.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed number of threads that run jobs only while the estimated memory of
+ * the running jobs fits in a budget.
+ *
+ * The budget is a semaphore of kibibytes, and a job holds as many permits as
+ * its estimate while it runs.  A free thread takes the oldest waiting job
+ * that fits in what is left, so small jobs keep the threads busy while a
+ * large one waits.  A job that has been passed over as many times as there
+ * are threads stops any later job from starting until it fits, so it can't
+ * wait forever.  A job larger than the whole budget runs alone.
+ *
+ * @author mindless
+ */
+public class BudgetedExecutor
+{
+    private final Semaphore budget;
+
+    private final int budgetPermits;
+
+    private final int maxBypassCount;
+
+    private final ArrayList<Job> waiting = new ArrayList<>();
+
+    private final Thread[] threads;
+
+    private final CountDownLatch terminated;
+
+    private boolean shutdown;
+
+    /**
+     * @param budgetBytes the memory that the running jobs may take together
+     */
+    public BudgetedExecutor( int threadCount, long budgetBytes )
+    {
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("threadCount is not positive");
+        if (budgetBytes <= 0)
+            throw new IllegalArgumentException("budgetBytes is not positive");
+
+        budgetPermits = (int)Math.min(Integer.MAX_VALUE, Math.max(1, budgetBytes / 1024));
+        budget = new Semaphore(budgetPermits);
+        maxBypassCount = threadCount;
+
+        terminated = new CountDownLatch(threadCount);
+
+        threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; ++i)
+        {
+            threads[i] = new Thread(new Worker());
+            threads[i].start();
+        }
+    }
+
+    /**
+     * @return a budget that leaves a quarter of the maximum heap for
+     *         everything else
+     */
+    public static long getDefaultBudgetBytes()
+    {
+        return Runtime.getRuntime().maxMemory() / 4 * 3;
+    }
+
+    /**
+     * @param costBytes the estimated peak memory of the job
+     */
+    public void execute( long costBytes, Runnable runnable )
+    {
+        int permits = (int)Math.min(budgetPermits, (Math.max(0, costBytes) + 1023) / 1024);
+
+        synchronized (waiting)
+        {
+            if (shutdown)
+                throw new IllegalStateException("executor is shut down");
+
+            waiting.add(new Job(runnable, permits));
+            waiting.notifyAll();
+        }
+    }
+
+    /**
+     * Runs the jobs already given and then stops the threads.
+     */
+    public void shutdown()
+    {
+        synchronized (waiting)
+        {
+            shutdown = true;
+            waiting.notifyAll();
+        }
+    }
+
+    /**
+     * Drops the waiting jobs and interrupts the running ones.
+     */
+    public void shutdownNow()
+    {
+        synchronized (waiting)
+        {
+            shutdown = true;
+            waiting.clear();
+            waiting.notifyAll();
+        }
+
+        for (Thread thread : threads)
+            thread.interrupt();
+    }
+
+    public boolean awaitTermination( long timeout, TimeUnit unit ) throws InterruptedException
+    {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * @return the next job to run, with its permits acquired, or null once
+     *         the executor is shut down and no jobs are waiting
+     */
+    private Job take() throws InterruptedException
+    {
+        synchronized (waiting)
+        {
+            while (true)
+            {
+                for (int i = 0; i < waiting.size(); ++i)
+                {
+                    Job job = waiting.get(i);
+
+                    if (budget.tryAcquire(job.permits))
+                    {
+                        waiting.remove(i);
+
+                        for (int j = 0; j < i; ++j)
+                            waiting.get(j).bypassCount += 1;
+
+                        return job;
+                    }
+
+                    if (job.bypassCount >= maxBypassCount)
+                        break;
+                }
+
+                if (shutdown && waiting.isEmpty())
+                    return null;
+
+                waiting.wait();
+            }
+        }
+    }
+
+    private void release( Job job )
+    {
+        budget.release(job.permits);
+
+        synchronized (waiting)
+        {
+            waiting.notifyAll();
+        }
+    }
+
+    private static class Job
+    {
+        private final Runnable runnable;
+
+        private final int permits;
+
+        private int bypassCount;
+
+        private Job( Runnable runnable, int permits )
+        {
+            this.runnable = runnable;
+            this.permits = permits;
+        }
+    }
+
+    private class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                for (Job job; (job = take()) != null; )
+                {
+                    try
+                    {
+                        job.runnable.run();
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        Logger.getLogger(BudgetedExecutor.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                    finally
+                    {
+                        release(job);
+                    }
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // shut down now
+            }
+            finally
+            {
+                terminated.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/* 
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author mindless
+ */
+public class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream( ByteBuffer buffer )
+    {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read()
+    {
+        if (!buffer.hasRemaining())
+            return -1;
+        
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read( byte[] bytes, int offset, int length )
+    {
+        if (length == 0)
+            return 0;
+        
+        if (!buffer.hasRemaining())
+            return -1;
+        
+        length = Math.min(length, buffer.remaining());
+        
+        buffer.get(bytes, offset, length);
+        
+        return length;
+    }
+
+    @Override
+    public long skip( long n )
+    {
+        int count = (int)Math.max(0, Math.min(n, buffer.remaining()));
+        
+        buffer.position(buffer.position() + count);
+        
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+}
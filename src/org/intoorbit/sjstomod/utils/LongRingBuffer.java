@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014 Carl Reinke
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.intoorbit.sjstomod.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of longs for exactly one producer thread and one consumer
+ * thread, without locks.
+ *
+ * Each side publishes its own index with an ordered write and keeps a cached
+ * copy of the other side's index, so it only reads the shared index when the
+ * cached one says the buffer is full or empty.
+ *
+ * @author mindless
+ */
+public class LongRingBuffer
+{
+    private final long[] values;
+
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();  // next to read
+
+    private final AtomicLong tail = new AtomicLong();  // next to write
+
+    private long cachedHead;  // producer only
+
+    private long cachedTail;  // consumer only
+
+    /**
+     * @param capacity a power of 2
+     */
+    public LongRingBuffer( int capacity )
+    {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity is not a power of 2");
+        
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    public int getCapacity()
+    {
+        return values.length;
+    }
+
+    /**
+     * Called only by the producer.
+     * 
+     * @return false if the buffer is full
+     */
+    public boolean offer( long value )
+    {
+        long t = tail.get();
+        
+        if (t - cachedHead == values.length)
+        {
+            cachedHead = head.get();
+            
+            if (t - cachedHead == values.length)
+                return false;
+        }
+        
+        values[(int)t & mask] = value;
+        tail.lazySet(t + 1);
+        
+        return true;
+    }
+
+    /**
+     * Called only by the consumer.
+     */
+    public boolean isEmpty()
+    {
+        long h = head.get();
+        
+        if (h == cachedTail)
+            cachedTail = tail.get();
+        
+        return h == cachedTail;
+    }
+
+    /**
+     * Called only by the consumer, after {@link #isEmpty} has returned
+     * false.
+     */
+    public long poll()
+    {
+        long h = head.get();
+        
+        if (h == cachedTail)
+        {
+            cachedTail = tail.get();
+            
+            if (h == cachedTail)
+                throw new IllegalStateException("buffer is empty");
+        }
+        
+        long value = values[(int)h & mask];
+        head.lazySet(h + 1);
+        
+        return value;
+    }
+
+    /**
+     * @return the number of values waiting, which may be stale by the time
+     *         it is returned
+     */
+    public int size()
+    {
+        long h = head.get();
+        
+        return (int)(tail.get() - h);
+    }
+}